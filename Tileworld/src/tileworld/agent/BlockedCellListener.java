@@ -0,0 +1,17 @@
+package tileworld.agent;
+
+/**
+ * 记忆中某格子阻塞状态（是否为障碍物）发生变化时的回调
+ * 供增量式规划器使用，只修复发生变化的格子，而不是每步全图重算
+ */
+public interface BlockedCellListener {
+
+	/**
+	 * 记忆中(x, y)处的阻塞状态发生了变化
+	 *
+	 * @param x       x坐标
+	 * @param y       y坐标
+	 * @param blocked 变化后是否被阻塞
+	 */
+	void blockedCellChanged(int x, int y, boolean blocked);
+}
@@ -0,0 +1,67 @@
+package tileworld.agent;
+
+/**
+ * 二维树状数组（Fenwick树），支持单点增量更新和任意矩形区域求和
+ * 两种操作都是O(log w * log h)，用于在格子值频繁变化时快速求窗口和
+ * 坐标从0开始，内部下标从1开始
+ */
+public class FenwickTree2D {
+
+	private final int width;
+	private final int height;
+	private final long[][] tree;
+
+	/**
+	 * @param width  宽度
+	 * @param height 高度
+	 */
+	public FenwickTree2D(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.tree = new long[width + 1][height + 1];
+	}
+
+	/**
+	 * 给(x, y)处的值加上delta
+	 *
+	 * @param x     横坐标
+	 * @param y     纵坐标
+	 * @param delta 增量
+	 */
+	public void add(int x, int y, long delta) {
+		for (int i = x + 1; i <= width; i += i & -i) {
+			for (int j = y + 1; j <= height; j += j & -j) {
+				tree[i][j] += delta;
+			}
+		}
+	}
+
+	/**
+	 * 矩形[x1, x2] x [y1, y2]内所有值的和，超出边界的部分会被截掉
+	 *
+	 * @return 区域和，矩形为空时为0
+	 */
+	public long sum(int x1, int y1, int x2, int y2) {
+		x1 = Math.max(x1, 0);
+		y1 = Math.max(y1, 0);
+		x2 = Math.min(x2, width - 1);
+		y2 = Math.min(y2, height - 1);
+		if (x1 > x2 || y1 > y2) {
+			return 0;
+		}
+		return prefixSum(x2, y2) - prefixSum(x1 - 1, y2) - prefixSum(x2, y1 - 1) + prefixSum(x1 - 1, y1 - 1);
+	}
+
+	/**
+	 * 矩形[0, x] x [0, y]内所有值的和
+	 */
+	private long prefixSum(int x, int y) {
+		long s = 0;
+		for (int i = x + 1; i > 0; i -= i & -i) {
+			for (int j = y + 1; j > 0; j -= j & -j) {
+				s += tree[i][j];
+			}
+		}
+		return s;
+	}
+}
@@ -0,0 +1,73 @@
+package tileworld.agent;
+
+import java.util.Arrays;
+
+import tileworld.environment.TWEntity;
+
+/**
+ * 一次广播的记忆增量：自上次广播以来发生变化的格子，及其中的对象和时间戳
+ * 接收者只需合并这些格子，而不是发送者的整张记忆
+ * 由发送者的TWAgentWorkingMemory复用，内容在发送者下一次广播前有效
+ */
+public class MemoryDelta {
+
+	private int[] cells = new int[64];
+	private TWEntity[] objects = new TWEntity[64];
+	private int[] observedSteps = new int[64];
+	private int size;
+
+	/**
+	 * 清空，准备记录新的增量
+	 */
+	void clear() {
+		Arrays.fill(objects, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * 记录一个格子的当前内容
+	 *
+	 * @param cell         格子下标 x * height + y
+	 * @param o            格子中的对象，可为null
+	 * @param observedStep 格子的时间戳
+	 */
+	void add(int cell, TWEntity o, int observedStep) {
+		if (size == cells.length) {
+			cells = Arrays.copyOf(cells, size * 2);
+			objects = Arrays.copyOf(objects, size * 2);
+			observedSteps = Arrays.copyOf(observedSteps, size * 2);
+		}
+		cells[size] = cell;
+		objects[size] = o;
+		observedSteps[size] = observedStep;
+		size++;
+	}
+
+	/**
+	 * @return 变化的格子数
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return 第i个变化格子的下标 x * height + y
+	 */
+	public int getCell(int i) {
+		return cells[i];
+	}
+
+	/**
+	 * @return 第i个变化格子中的对象，可为null
+	 */
+	public TWEntity getObject(int i) {
+		return objects[i];
+	}
+
+	/**
+	 * @return 第i个变化格子的时间戳
+	 */
+	public int getObservedStep(int i) {
+		return observedSteps[i];
+	}
+}
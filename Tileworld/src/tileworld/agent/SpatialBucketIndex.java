@@ -0,0 +1,128 @@
+package tileworld.agent;
+
+import java.util.Arrays;
+
+import sim.util.IntBag;
+
+/**
+ * 按粗粒度空间桶划分的格子集合，用于记录某一类对象（如tile或hole）的位置
+ * 地图被切成bucketSize x bucketSize的桶，每个桶保存落在其中的格子下标(x * height + y)
+ * 矩形查询只访问与矩形相交的桶，代价与对象数成正比而不是矩形面积
+ * 增删都是O(1)，删除时与桶中最后一个元素交换
+ */
+public class SpatialBucketIndex {
+
+	private final int height;
+	private final int bucketSize;
+	private final int bucketsX;
+	private final int bucketsY;
+
+	/**
+	 * 每个桶中的格子下标及个数
+	 */
+	private final int[][] buckets;
+	private final int[] bucketCounts;
+
+	/**
+	 * 每个格子在其桶中的位置，-1表示不在集合中
+	 */
+	private final int[] position;
+
+	/**
+	 * 集合中的格子总数
+	 */
+	private int size;
+
+	/**
+	 * @param width      地图宽度
+	 * @param height     地图高度
+	 * @param bucketSize 桶的边长
+	 */
+	public SpatialBucketIndex(int width, int height, int bucketSize) {
+		this.height = height;
+		this.bucketSize = bucketSize;
+		this.bucketsX = (width + bucketSize - 1) / bucketSize;
+		this.bucketsY = (height + bucketSize - 1) / bucketSize;
+		this.buckets = new int[bucketsX * bucketsY][];
+		this.bucketCounts = new int[bucketsX * bucketsY];
+		this.position = new int[width * height];
+		Arrays.fill(position, -1);
+	}
+
+	/**
+	 * 把(x, y)加入集合，已在集合中时什么都不做
+	 */
+	public void add(int x, int y) {
+		int cell = x * height + y;
+		if (position[cell] >= 0) {
+			return;
+		}
+		int b = (x / bucketSize) * bucketsY + y / bucketSize;
+		if (buckets[b] == null) {
+			buckets[b] = new int[4];
+		} else if (bucketCounts[b] == buckets[b].length) {
+			buckets[b] = Arrays.copyOf(buckets[b], bucketCounts[b] * 2);
+		}
+		position[cell] = bucketCounts[b];
+		buckets[b][bucketCounts[b]++] = cell;
+		size++;
+	}
+
+	/**
+	 * 把(x, y)移出集合，不在集合中时什么都不做
+	 */
+	public void remove(int x, int y) {
+		int cell = x * height + y;
+		int p = position[cell];
+		if (p < 0) {
+			return;
+		}
+		int b = (x / bucketSize) * bucketsY + y / bucketSize;
+		int last = buckets[b][--bucketCounts[b]];
+		buckets[b][p] = last;
+		position[last] = p;
+		position[cell] = -1;
+		size--;
+	}
+
+	/**
+	 * @return (x, y)是否在集合中
+	 */
+	public boolean contains(int x, int y) {
+		return position[x * height + y] >= 0;
+	}
+
+	/**
+	 * @return 集合中的格子总数
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * 找出矩形[x1, x2] x [y1, y2]内的所有格子，按下标升序（即先x后y）放入out
+	 *
+	 * @param out 输出，会先被清空
+	 */
+	public void query(int x1, int y1, int x2, int y2, IntBag out) {
+		out.clear();
+		int bx1 = Math.max(x1, 0) / bucketSize;
+		int by1 = Math.max(y1, 0) / bucketSize;
+		int bx2 = Math.min(x2 / bucketSize, bucketsX - 1);
+		int by2 = Math.min(y2 / bucketSize, bucketsY - 1);
+		for (int bx = bx1; bx <= bx2; bx++) {
+			for (int by = by1; by <= by2; by++) {
+				int b = bx * bucketsY + by;
+				for (int k = 0; k < bucketCounts[b]; k++) {
+					int cell = buckets[b][k];
+					int x = cell / height;
+					int y = cell % height;
+					if (x >= x1 && x <= x2 && y >= y1 && y <= y2) {
+						out.add(cell);
+					}
+				}
+			}
+		}
+		out.sort();
+	}
+}
@@ -16,7 +16,16 @@ import tileworld.environment.TWHole;
 import tileworld.environment.TWTile;
 import tileworld.environment.TWFuelStation;
 import tileworld.environment.TWDirection;
+import tileworld.planners.AstarPathGenerator;
+import tileworld.planners.CooperativePathGenerator;
+import tileworld.planners.DStarLitePlanner;
+import tileworld.planners.DistanceField;
+import tileworld.planners.HierarchicalPathGenerator;
+import tileworld.planners.LandmarkHeuristic;
 import tileworld.planners.DefaultTWPlanner;
+import tileworld.planners.TWPlanner;
+import tileworld.planners.TimeExpandedPathGenerator;
+import tileworld.planners.TourPlanner;
 import tileworld.exceptions.CellBlockedException;
 
 /**
@@ -70,6 +79,67 @@ public class TWAgentHybrid extends TWAgent {
 
     private boolean allowAssistance=false;
 
+    /**
+     * 使用增量式规划器DStarLitePlanner代替每步重新A*的DefaultTWPlanner
+     * 目标和已知障碍不变时，规划几乎不再有开销
+     */
+    private boolean incrementalPlanning=false;
+
+    /**
+     * 大地图（如500x500）上使用分层寻路HierarchicalPathGenerator
+     * 以锚点间距为簇大小，只细化下一段路径
+     */
+    private boolean hierarchicalPlanning=false;
+
+    /**
+     * 收集/填充时用TourPlanner对若干tile和hole排序，考虑剩余寿命、携带上限和油量
+     * 而不是总是去最近的一个
+     */
+    private boolean tourPlanning=false;
+
+    /**
+     * 协同寻路：在共享的时空预约表中预约未来若干步要占用的格子
+     * 后规划的agent会绕开或等待，避免争抢同一格子
+     */
+    private boolean cooperativePlanning=false;
+
+    /**
+     * 协同寻路的时间窗口（步数），窗口之外按普通A*补全路径
+     */
+    private int cooperativeWindow=8;
+
+    /**
+     * 每次寻路的节点扩展上限，0为不限
+     * 超出上限时返回朝向目标的部分路径，以限制每步的规划耗时
+     */
+    private int planningExpansionBudget=0;
+
+    /**
+     * 加权A*的启发式放大系数，1为普通A*
+     */
+    private double planningHeuristicWeight=1.0;
+
+    /**
+     * 使用ALT地标启发式代替曼哈顿距离，地标距离随记忆中的障碍物增量更新
+     */
+    private boolean landmarkHeuristic=false;
+
+    /**
+     * 规划时考虑障碍物的剩余寿命：在时间展开的状态空间中权衡原地等待障碍物消失与绕路
+     */
+    private boolean obstacleLifetimePlanning=false;
+
+    /**
+     * 时间展开规划的时间范围（步数），范围之外按普通A*补全路径
+     */
+    private int obstacleLifetimeHorizon=20;
+
+    /**
+     * 通过团队黑板共享记忆：感知到的变化写入黑板，每步从黑板同步一次
+     * 为false时两两广播并合并记忆增量
+     */
+    private boolean blackboardSharing=false;
+
     /**
      * Furthest zone agent can move to assist, specified in terms of number of zones
      */
@@ -106,7 +176,7 @@ public class TWAgentHybrid extends TWAgent {
      * 计划对象中包含了最终行动所需的目标的位置
      * 并且会根据目标位置和当前位置生成路径path
      */
-    private DefaultTWPlanner planner;
+    private TWPlanner planner;
     /**
      * 行动模式
      */
@@ -167,6 +237,14 @@ public class TWAgentHybrid extends TWAgent {
      * 最近的hole
      */
     TWEntity[] closestHole;
+    /**
+     * 多目标路线规划器，tourPlanning开启时使用
+     */
+    private TourPlanner tourPlanner;
+    /**
+     * 路线规划得到的下一个目标，为null时使用closestTile[0]/closestHole[0]
+     */
+    private TWEntity tourTarget;
 
     // ==============================================================================
     // 构造函数
@@ -186,10 +264,40 @@ public class TWAgentHybrid extends TWAgent {
         this.name = name;
         // 标识符
         this.agentID = Character.getNumericValue(name.charAt(name.length() - 1)); // 这里不需要减一，因为agentID为0在communicate的时候代表全部Agent
-        // agent的计划
-        this.planner = new DefaultTWPlanner(this);
-        // agent的记忆
+        // agent的记忆，需在planner之前创建，增量式规划器会监听记忆的变化
         this.memory = new TWAgentWorkingMemory(this, env.schedule);
+        // agent的计划
+        if (incrementalPlanning) {
+            this.planner = new DStarLitePlanner(this);
+        } else if (cooperativePlanning) {
+            DefaultTWPlanner cooperative = new DefaultTWPlanner(this, new CooperativePathGenerator(env, this,
+                    env.getReservationTable(), cooperativeWindow, new AstarPathGenerator(env, this, 100)));
+            // 路径依赖于其他agent的预约，不能缓存或沿用
+            cooperative.setPathCacheSize(0);
+            cooperative.setPlanRetention(false);
+            this.planner = cooperative;
+        } else if (obstacleLifetimePlanning) {
+            DefaultTWPlanner timeExpanded = new DefaultTWPlanner(this, new TimeExpandedPathGenerator(env, this,
+                    obstacleLifetimeHorizon, new AstarPathGenerator(env, this, 100)));
+            // 路径依赖于当前时间，不能缓存
+            timeExpanded.setPathCacheSize(0);
+            this.planner = timeExpanded;
+        } else if (hierarchicalPlanning) {
+            this.planner = new DefaultTWPlanner(this, new HierarchicalPathGenerator(env, this, Integer.MAX_VALUE));
+        } else if (planningExpansionBudget > 0 || planningHeuristicWeight != 1.0 || landmarkHeuristic) {
+            AstarPathGenerator astar = new AstarPathGenerator(env, this, 100);
+            astar.setBudget(planningExpansionBudget, 0, planningHeuristicWeight);
+            if (landmarkHeuristic) {
+                astar.setHeuristic(new LandmarkHeuristic(memory, env.getxDimension(), env.getyDimension(), 4));
+            }
+            this.planner = new DefaultTWPlanner(this, astar);
+        } else {
+            this.planner = new DefaultTWPlanner(this);
+        }
+        // 多目标路线规划，每次调用限时0.2毫秒
+        if (tourPlanning) {
+            this.tourPlanner = new TourPlanner(5, 6, 200000L);
+        }
         // agent所属区域的四角
         this.bounds = new Int2D[4];
         // 初始化其他参数
@@ -213,10 +321,18 @@ public class TWAgentHybrid extends TWAgent {
     @Override
     public void communicate() {
         // 获取记忆
-        // 发送自己的记忆
+        // 发送自己的记忆自上次广播以来的增量，所有agent每步都广播，别人不会漏掉
         // 暂且规定 receiver 为 0 时向全体广播
+        // 使用团队黑板时改为写入黑板，消息中只带位置
+        Object shared;
+        if (blackboardSharing) {
+            memory.publishTo(this.getEnvironment().getTeamBlackboard());
+            shared = null;
+        } else {
+            shared = memory.publishDelta();
+        }
         Message message = new Message(agentID, 0, MsgType.agentInfo,
-                new Object[] { memory.getAgentPercept(), new Int2D(x, y) });
+                new Object[] { shared, new Int2D(x, y) });
         this.getEnvironment().receiveMessage(message);
 
         // 判断是否初始化完成（划分好区域了）
@@ -238,14 +354,14 @@ public class TWAgentHybrid extends TWAgent {
         // 判断可达性--添加可能列表
         while (!tilesInZone.isEmpty()) {
             TWEntity tile = tilesInZone.poll();
-            double distToTile = this.getDistanceTo(tile);
+            double distToTile = memory.getPathDistance(tile);
             if (memory.getEstimatedRemainingLifetime(tile, this.objectLifetimeThreshold) <= distToTile) auctionTiles.add(tile);
             else possibleTileGoals.add(tile);
         }
 
         while (!holesInZone.isEmpty()) {
             TWEntity hole = holesInZone.poll();
-            double distToHole = this.getDistanceTo(hole);
+            double distToHole = memory.getPathDistance(hole);
             if (memory.getEstimatedRemainingLifetime(hole, this.objectLifetimeThreshold) <= distToHole) auctionHoles.add(hole);
             else possibleHoleGoals.add(hole);
         }
@@ -430,7 +546,7 @@ public class TWAgentHybrid extends TWAgent {
         int myZone = myZoneID.get(agentID);
         if (myZone != contractZone && Math.abs(myZone - contractZone) <= maxAssistZoneDistance) {
             for (TWEntity twEntity : contractObj) {
-                double distToObj = this.getDistanceTo(twEntity);
+                double distToObj = memory.getPathDistance(twEntity);
                 if (!(memory.getEstimatedRemainingLifetime(twEntity, this.objectLifetimeThreshold) <= distToObj)) queue.add(twEntity);
             }
         }
@@ -442,7 +558,8 @@ public class TWAgentHybrid extends TWAgent {
      * @return 返回TSP距离
      */
     public double getTSPDistance(TWEntity o) {
-        double oDist = getDistanceTo(o);
+        // 路径距离（一次BFS得到所有候选对象的距离），而非曼哈顿距离
+        double oDist = memory.getPathDistance(o);
         // Modifies Manhattan distance by lifetime remaining, so between two equidistant objects, the one with a shorter lifetime is closer
         if (this.TSPHeuristic) {
             oDist *= memory.getEstimatedRemainingLifetime(o, 1.0)/Parameters.lifeTime;
@@ -462,14 +579,14 @@ public class TWAgentHybrid extends TWAgent {
         holesInZone = memory.getNearbyObjectsWithinBounds(bounds, new TWHole().getClass());
         while (!tilesInZone.isEmpty()) {
             TWEntity tile = tilesInZone.poll();
-            double distToTile = this.getDistanceTo(tile);
+            double distToTile = memory.getPathDistance(tile);
             if (!(memory.getEstimatedRemainingLifetime(tile, this.objectLifetimeThreshold) <= distToTile)) {
                 possibleTileGoals.add(tile);
             }
         }
         while (!holesInZone.isEmpty()) {
             TWEntity hole = holesInZone.poll();
-            double distToHole = this.getDistanceTo(hole);
+            double distToHole = memory.getPathDistance(hole);
             if (!(memory.getEstimatedRemainingLifetime(hole, this.objectLifetimeThreshold) <= distToHole)) {
                 possibleHoleGoals.add(hole);
             }
@@ -583,6 +700,19 @@ public class TWAgentHybrid extends TWAgent {
         return anchorGoal;
     }
 
+    /**
+     * 到加油站的路径距离，查距离场即可
+     * 若记忆中的障碍物把加油站完全围住，退回曼哈顿距离（障碍物终会消失）
+     * @return 到加油站的距离
+     */
+    private double getDistanceToFuelStation() {
+        int dist = memory.getFuelStationField().getDistance(x, y);
+        if (dist == DistanceField.UNREACHABLE) {
+            return this.getDistanceTo(memory.getFuelStation().x, memory.getFuelStation().y);
+        }
+        return dist;
+    }
+
     /**
      * 根据Agent当前状态设置行动模式Mode
      * @param assistableTiles 可协助收集的瓦片
@@ -593,7 +723,7 @@ public class TWAgentHybrid extends TWAgent {
         mode = Mode.EXPLORE;
 
         // 如果已经找到加油站并且燃料不足，加油优先级最高
-        if (memory.getFuelStation() != null && this.getDistanceTo(memory.getFuelStation().x, memory.getFuelStation().y) >= this.fuelLevel * fuelTolerance) {
+        if (memory.getFuelStation() != null && getDistanceToFuelStation() >= this.fuelLevel * fuelTolerance) {
             mode = Mode.REFUEL;
         }
         // 如果尚未找到加油站，探索优先级最高
@@ -643,6 +773,21 @@ public class TWAgentHybrid extends TWAgent {
         else if (allowAssistance && !assistableHoles.isEmpty()) {
             mode = Mode.ASSIST_FILL;
         }
+
+        // 用路线规划的第一站代替最近的目标，并据此修正模式
+        tourTarget = null;
+        if (tourPlanning && (mode == Mode.COLLECT || mode == Mode.FILL)) {
+            // 路线结束后仍需留够回加油站的油
+            int fuelBudget = (int) (this.fuelLevel * fuelTolerance - getDistanceToFuelStation());
+            tourTarget = tourPlanner.plan(x, y, this.carriedTiles.size(), fuelBudget,
+                    possibleTileGoals, possibleHoleGoals, memory, objectLifetimeThreshold);
+            if (tourTarget instanceof TWTile) {
+                mode = Mode.COLLECT;
+            }
+            else if (tourTarget instanceof TWHole) {
+                mode = Mode.FILL;
+            }
+        }
     }
 
 
@@ -655,14 +800,22 @@ public class TWAgentHybrid extends TWAgent {
         // [初始化] 初始化划分区域, 设置默认的closestTile和closestHole
         assignZoneAndFindEntities();
 
-		// [知识共享] 获取环境中的所有Messages,并将类别是agentInfo(MAP)的MessageContent合并到自己的memory里面
+		// [知识共享] 获取环境中的所有Messages,并将类别是agentInfo(记忆增量)的MessageContent合并到自己的memory里面
+		// 使用团队黑板时一次同步所有人的变化，消息只用来标记别人感受野内已探索
 		ArrayList<Message> messages = this.getEnvironment().getMessages();
+		if (blackboardSharing) {
+			memory.syncFrom(this.getEnvironment().getTeamBlackboard());
+		}
 		for (int i = 0; i < messages.size(); i++) {
 			Message message = messages.get(i);
 			if (message.getSender() != agentID &&
 				message.getReceiver() == 0 &&
 				message.getMessageType() == MsgType.agentInfo) {
-				memory.mergeMemory((TWAgentPercept[][]) message.getMessageContent()[0], (Int2D) message.getMessageContent()[1]);
+				if (blackboardSharing) {
+					memory.markSeenAround((Int2D) message.getMessageContent()[1]);
+				} else {
+					memory.mergeMemory((MemoryDelta) message.getMessageContent()[0], (Int2D) message.getMessageContent()[1]);
+				}
 			}
 		}
 
@@ -678,6 +831,12 @@ public class TWAgentHybrid extends TWAgent {
 		planner.getGoals().clear();
 		planner.voidPlan();
 
+		// [协同规划] 先只预约当前格子，释放上一步规划的路径
+		// 本步不经过规划器时（拾取、加油、沿加油场移动、等待）就不会留下过期的预约，其他agent也会绕开自己
+		if (cooperativePlanning) {
+			this.getEnvironment().getReservationTable().hold(this, x, y, (int) this.getEnvironment().schedule.getTime());
+		}
+
 //        System.out.println(fuelLevel);
 
         // 即使在优先考虑探索的情况下，始终检查是否可以拾起/填充/加油
@@ -688,7 +847,7 @@ public class TWAgentHybrid extends TWAgent {
 			mode = Mode.REACT_FILL;
             // 宣布目标，因为可能目标不在自己区域的视野范围内，而是在前往或离开加油站的途中遇到的
             // 如果是这样，可能会出现目标冲突的情况
-			TWEntity[] goalsArr = new TWEntity[] {this.memory.getObjects()[x][y].getO()};
+			TWEntity[] goalsArr = new TWEntity[] {this.memory.getObject(x, y)};
 			Message goalMessage = new Message(agentID, 0, MsgType.goalInfo, goalsArr);
 			this.getEnvironment().receiveMessage(goalMessage);
 
@@ -701,7 +860,7 @@ public class TWAgentHybrid extends TWAgent {
 		{
 			mode = Mode.REACT_COLLECT;
 
-			TWEntity[] goalsArr = new TWEntity[] {this.memory.getObjects()[x][y].getO()};
+			TWEntity[] goalsArr = new TWEntity[] {this.memory.getObject(x, y)};
 			Message goalMessage = new Message(agentID, 0, MsgType.goalInfo, goalsArr);
 			this.getEnvironment().receiveMessage(goalMessage);
 
@@ -727,12 +886,19 @@ public class TWAgentHybrid extends TWAgent {
 			}
 			else if (mode == Mode.REFUEL) {
 				planner.getGoals().add(memory.getFuelStation());
+				// 沿距离场下降即为最短路径，无需搜索
+				TWDirection toFuelStation = memory.getFuelStationField().getDirectionToRoot(x, y);
+				if (toFuelStation != null) {
+					return new TWThought(TWAction.MOVE, toFuelStation);
+				}
 			}
 			else if (mode == Mode.COLLECT) {
-				planner.getGoals().add(new Int2D(closestTile[0].getX(), closestTile[0].getY()));
+				TWEntity tile = tourTarget != null ? tourTarget : closestTile[0];
+				planner.getGoals().add(new Int2D(tile.getX(), tile.getY()));
 			}
 			else if (mode == Mode.FILL) {
-				planner.getGoals().add(new Int2D(closestHole[0].getX(), closestHole[0].getY()));
+				TWEntity hole = tourTarget != null ? tourTarget : closestHole[0];
+				planner.getGoals().add(new Int2D(hole.getX(), hole.getY()));
 			}
 			else if (mode == Mode.ASSIST_COLLECT) {
 				planner.getGoals().add(new Int2D(assistableTiles.peek().getX(), assistableTiles.peek().getY()));
@@ -9,6 +9,9 @@ import sim.util.Int2D;
 import sim.util.IntBag;
 import tileworld.environment.*;
 import tileworld.Parameters;
+import tileworld.planners.BitboardFloodFill;
+import tileworld.planners.DistanceField;
+import tileworld.planners.LocalDistanceMap;
 
 /**
  * 修改后的agent记忆模块
@@ -50,33 +53,257 @@ public class TWAgentWorkingMemory {
 
 	// --------------
 	/**
-	 * 主记忆存储区，可以调用其set()方法，设定特定坐标处的对象（hole/tile/etc）
+	 * 地图尺寸
 	 */
-	private ObjectGrid2D memoryGrid;
+	private int width;
+	private int height;
 
 	/**
-	 * 获取主记忆存储网格
+	 * 记忆存储区，按列存储的数组结构，格子(x, y)的下标为 x * height + y
+	 * 代替原来的TWAgentPercept[][]和ObjectGrid2D两份网格，每步更新不再分配对象
 	 *
-	 * @return 网格对象
+	 * objectType：格子中对象的类型编码（TYPE_NONE/TYPE_TILE/...）
+	 * observedStep：格子最后一次被观察到的时间步，即原TWAgentPercept的时间戳
+	 * objectRef：格子中的对象实例，即对象的标识，没有对象时为null
 	 */
-	public ObjectGrid2D getMemoryGrid() {
-		return this.memoryGrid;
+	private byte[] objectType;
+	private int[] observedStep;
+	private TWEntity[] objectRef;
+
+	/**
+	 * 类型编码
+	 */
+	public static final byte TYPE_NONE = 0;
+	public static final byte TYPE_TILE = 1;
+	public static final byte TYPE_HOLE = 2;
+	public static final byte TYPE_OBSTACLE = 3;
+	public static final byte TYPE_FUEL_STATION = 4;
+	public static final byte TYPE_OTHER = 5;
+
+	/**
+	 * 对象的类型编码
+	 *
+	 * @param o 对象，可为null
+	 * @return 类型编码
+	 */
+	public static byte typeOf(TWEntity o) {
+		if (o == null) {
+			return TYPE_NONE;
+		} else if (o instanceof TWTile) {
+			return TYPE_TILE;
+		} else if (o instanceof TWHole) {
+			return TYPE_HOLE;
+		} else if (o instanceof TWObstacle) {
+			return TYPE_OBSTACLE;
+		} else if (o instanceof TWFuelStation) {
+			return TYPE_FUEL_STATION;
+		}
+		return TYPE_OTHER;
+	}
+
+	/**
+	 * 获取记忆中(x, y)处的对象
+	 *
+	 * @return 对象，没有时为null
+	 */
+	public TWEntity getObject(int x, int y) {
+		return objectRef[x * height + y];
+	}
+
+	/**
+	 * 获取记忆中(x, y)处对象的类型编码
+	 *
+	 * @return 类型编码
+	 */
+	public byte getObjectType(int x, int y) {
+		return objectType[x * height + y];
+	}
+
+	/**
+	 * 获取(x, y)处记忆的时间戳
+	 *
+	 * @return 时间戳
+	 */
+	public double getObservedTime(int x, int y) {
+		return observedStep[x * height + y];
+	}
+
+	/**
+	 * 设置格子中的对象，同时维护类型编码、tile/hole的空间索引和界面用的网格
+	 */
+	private void setObject(int cell, TWEntity o) {
+		byte type = typeOf(o);
+		if (objectType[cell] != type) {
+			SpatialBucketIndex oldIndex = getIndex(objectType[cell]);
+			if (oldIndex != null) {
+				oldIndex.remove(cell / height, cell % height);
+			}
+			SpatialBucketIndex newIndex = getIndex(type);
+			if (newIndex != null) {
+				newIndex.add(cell / height, cell % height);
+			}
+		}
+		objectRef[cell] = o;
+		objectType[cell] = type;
+		if (memoryGrid != null) {
+			memoryGrid.set(cell / height, cell % height, o);
+		}
+	}
+
+	// --------------
+	/**
+	 * 自上次广播以来由自己的感知改变过的格子，广播时只发送这些格子
+	 * 从别人那里合并来的格子不记录，避免来回转发
+	 */
+	private boolean[] dirty;
+	private IntBag dirtyCells = new IntBag();
+
+	/**
+	 * 广播用的增量，每次广播复用
+	 */
+	private MemoryDelta delta = new MemoryDelta();
+
+	/**
+	 * 把格子记为自上次广播以来改变过
+	 */
+	private void markDirty(int cell) {
+		if (!dirty[cell]) {
+			dirty[cell] = true;
+			dirtyCells.add(cell);
+		}
+	}
+
+	/**
+	 * 取出自上次调用以来改变过的格子，作为广播内容
+	 * 返回的对象会在下次调用时被复用，接收者应在本步内合并完毕
+	 *
+	 * @return 记忆增量
+	 */
+	public MemoryDelta publishDelta() {
+		delta.clear();
+		for (int k = 0; k < dirtyCells.size(); k++) {
+			int cell = dirtyCells.get(k);
+			delta.add(cell, objectRef[cell], observedStep[cell]);
+			dirty[cell] = false;
+		}
+		dirtyCells.clear();
+		return delta;
+	}
+
+	/**
+	 * 把自上次广播以来自己的感知改变过的格子写入团队黑板，代替广播增量
+	 *
+	 * @param board 团队黑板
+	 */
+	public void publishTo(TeamBlackboard board) {
+		for (int k = 0; k < dirtyCells.size(); k++) {
+			int cell = dirtyCells.get(k);
+			board.write(cell, objectRef[cell], observedStep[cell]);
+			dirty[cell] = false;
+		}
+		dirtyCells.clear();
+	}
+
+	/**
+	 * 每个格子被拒绝的最新一条别人的观测（因为自己记着另一个对象）
+	 * 增量和黑板都只提供一次，不像整张合并那样每步重复提供，
+	 * 所以自己的对象过期时要补上这条观测，见decayMemory
+	 */
+	private TWEntity[] pendingRef;
+	private int[] pendingStep;
+
+	/**
+	 * 上次从团队黑板同步时的版本号
+	 */
+	private long blackboardVersion;
+
+	/**
+	 * 从团队黑板读取变化用的缓冲，每次同步复用
+	 */
+	private MemoryDelta syncBuffer = new MemoryDelta();
+
+	/**
+	 * 从团队黑板同步上次以来变化的格子，合并规则与mergeMemory相同
+	 * 自己更新的观测会被保留，所以本地记忆就是黑板加上自己尚未被确认的观测
+	 *
+	 * @param board 团队黑板
+	 */
+	public void syncFrom(TeamBlackboard board) {
+		blackboardVersion = board.readChanges(blackboardVersion, syncBuffer);
+		for (int k = 0; k < syncBuffer.size(); k++) {
+			mergeCell(syncBuffer.getCell(k), syncBuffer.getObject(k), syncBuffer.getObservedStep(k));
+		}
+		syncBuffer.clear();
 	}
 
 	// --------------
 	/**
-	 * 副记忆存储区，存储‘观测’，它将普通的对象（hole/tile/etc）包装上了时间戳
-	 * 原代码中两个都用了，感觉可以精简合并到主记忆区中？
+	 * 记忆中tile和hole的位置，按粗粒度空间桶索引，区域查询只需访问有对象的桶
+	 */
+	private SpatialBucketIndex tileIndex;
+	private SpatialBucketIndex holeIndex;
+
+	/**
+	 * 空间桶的边长
+	 */
+	private static final int INDEX_BUCKET_SIZE = 8;
+
+	/**
+	 * 区域查询的结果，预先分配，每次复用
 	 */
-	private TWAgentPercept[][] objects;
+	private IntBag indexQuery = new IntBag();
 
 	/**
-	 * 获取副观测列表
+	 * 某类型对象的空间索引
+	 *
+	 * @param type 类型编码
+	 * @return 索引，该类型没有索引时为null
+	 */
+	private SpatialBucketIndex getIndex(byte type) {
+		if (type == TYPE_TILE) {
+			return tileIndex;
+		} else if (type == TYPE_HOLE) {
+			return holeIndex;
+		}
+		return null;
+	}
+
+	// --------------
+	/**
+	 * 供界面显示的记忆网格，第一次获取时才建立，之后与记忆存储区同步维护
+	 * 不显示界面时不占内存
+	 */
+	private ObjectGrid2D memoryGrid;
+
+	/**
+	 * 获取记忆网格
+	 *
+	 * @return 网格对象
+	 */
+	public ObjectGrid2D getMemoryGrid() {
+		if (memoryGrid == null) {
+			memoryGrid = new ObjectGrid2D(width, height);
+			for (int cell = 0; cell < objectRef.length; cell++) {
+				memoryGrid.set(cell / height, cell % height, objectRef[cell]);
+			}
+		}
+		return this.memoryGrid;
+	}
+
+	/**
+	 * 获取观测列表的副本，每个格子包装成带时间戳的TWAgentPercept
+	 * 每次调用都会分配新的数组，只为兼容旧接口，新代码请使用getObject()和getObservedTime()
 	 *
 	 * @return agent的观测，包装了时间戳的对象
 	 */
 	public TWAgentPercept[][] getAgentPercept() {
-		return this.objects;
+		TWAgentPercept[][] percepts = new TWAgentPercept[width][height];
+		for (int i = 0; i < width; i++) {
+			for (int j = 0; j < height; j++) {
+				percepts[i][j] = new TWAgentPercept(objectRef[i * height + j], observedStep[i * height + j]);
+			}
+		}
+		return percepts;
 	}
 
 	// --------------
@@ -104,6 +331,85 @@ public class TWAgentWorkingMemory {
 		this.fuelStation = new Int2D(x, y);
 	}
 
+	/**
+	 * 以加油站为根的距离场，考虑了记忆中的障碍物，随障碍物出现/消失增量更新
+	 */
+	private DistanceField fuelStationField;
+
+	/**
+	 * 获取到加油站的距离场
+	 * 第一次调用时才建立，此时本步的记忆更新已经完成，保证基于完整的障碍物信息
+	 *
+	 * @return 距离场，尚未找到加油站时为null
+	 */
+	public DistanceField getFuelStationField() {
+		if (fuelStationField == null && fuelStation != null) {
+			fuelStationField = new DistanceField(this, width, height,
+					fuelStation.x, fuelStation.y);
+		}
+		return fuelStationField;
+	}
+
+	/**
+	 * 以agent当前位置为源的有界BFS路径距离，一次遍历即可给出到所有候选tile/hole的真实距离
+	 */
+	private LocalDistanceMap agentDistances;
+
+	/**
+	 * 基于障碍物位图的按字并行洪水填充，用于k步内可达性查询
+	 */
+	private BitboardFloodFill floodFill;
+
+	/**
+	 * 获取位图洪水填充引擎，调用其fill()后即可查询可达集合和有界距离
+	 * 例如：某tile能否在消失前到达、油量是否足够、某区域是否被障碍物隔断
+	 *
+	 * @return 洪水填充引擎
+	 */
+	public BitboardFloodFill getFloodFill() {
+		if (floodFill == null) {
+			floodFill = new BitboardFloodFill(this, width, height);
+		}
+		return floodFill;
+	}
+
+	/**
+	 * agentDistances计算时的障碍物版本号，位置或障碍物变化时才重算
+	 */
+	private long agentDistancesVersion = -1;
+
+	/**
+	 * BFS范围在候选对象曼哈顿距离之上留出的余量，用于绕开障碍物
+	 */
+	private static final int PATH_DISTANCE_SLACK = 8;
+
+	/**
+	 * 获取agent到某对象的路径距离（考虑记忆中的障碍物）
+	 * BFS只搜索到所需的范围：从对象的曼哈顿距离加余量开始，对象不在范围内时从边界处继续扩展，
+	 * 因此代价取决于最远的候选对象而不是整张地图，结果总是精确的
+	 * 被障碍物完全围住的对象返回地图格子数，排在最后
+	 *
+	 * @param o 对象
+	 * @return 路径距离
+	 */
+	public double getPathDistance(TWEntity o) {
+		int manhattan = Math.abs(o.getX() - mySelf.getX()) + Math.abs(o.getY() - mySelf.getY());
+		if (!agentDistances.isCurrent() || agentDistances.getSourceX() != mySelf.getX()
+				|| agentDistances.getSourceY() != mySelf.getY() || agentDistancesVersion != obstacleVersion) {
+			agentDistances.compute(mySelf.getX(), mySelf.getY(), manhattan + PATH_DISTANCE_SLACK);
+			agentDistancesVersion = obstacleVersion;
+		}
+		while (!agentDistances.isResolved(o.getX(), o.getY())) {
+			// 范围每次至少增加余量，而路径长度不会超过格子数，循环一定会结束
+			agentDistances.extend(Math.max(agentDistances.getMaxDistance(), manhattan) + PATH_DISTANCE_SLACK);
+		}
+		int dist = agentDistances.getDistance(o.getX(), o.getY());
+		if (dist == LocalDistanceMap.UNREACHABLE) {
+			return width * height;
+		}
+		return dist;
+	}
+
 	// --------------
 	/**
 	 * 存储感受野中最近的对象（hole/tile/etc）
@@ -162,11 +468,132 @@ public class TWAgentWorkingMemory {
 
 	// --------------
 	/**
-	 * 探索得分/优先级
-	 * 越没探索越大
-	 * 源代码：未探索 = 正无穷, 正在探索 = 0, 每次衰减 += 1
+	 * 阻塞状态变化的监听者，比如增量式规划器
 	 */
-	private Double[][] explorationScore;
+	private List<BlockedCellListener> blockedCellListeners = new ArrayList<BlockedCellListener>();
+
+	/**
+	 * 注册阻塞状态变化的监听者
+	 *
+	 * @param listener 监听者
+	 */
+	public void addBlockedCellListener(BlockedCellListener listener) {
+		blockedCellListeners.add(listener);
+	}
+
+	/**
+	 * 障碍物版本号，记忆中每增加或移除一个障碍物就加一
+	 * 缓存的路径等可以据此判断是否过期
+	 */
+	private long obstacleVersion;
+
+	/**
+	 * 获取障碍物版本号
+	 *
+	 * @return 版本号
+	 */
+	public long getObstacleVersion() {
+		return obstacleVersion;
+	}
+
+	/**
+	 * 障碍物位图，每行y占blockedWordsPerRow个long，第x位表示(x, y)是否被阻塞
+	 * 与objectType同步维护，规划器可直接读取，也便于按字并行的洪泛
+	 */
+	private long[] blockedBits;
+
+	/**
+	 * 位图中每行占用的long个数
+	 */
+	private int blockedWordsPerRow;
+
+	/**
+	 * 获取障碍物位图，只读
+	 *
+	 * @return 位图
+	 */
+	public long[] getBlockedBits() {
+		return blockedBits;
+	}
+
+	/**
+	 * 获取位图中每行占用的long个数
+	 *
+	 * @return long个数
+	 */
+	public int getBlockedWordsPerRow() {
+		return blockedWordsPerRow;
+	}
+
+	/**
+	 * 在障碍物位图中查询(x, y)是否被阻塞
+	 *
+	 * @param bits        getBlockedBits()得到的位图
+	 * @param wordsPerRow getBlockedWordsPerRow()
+	 * @param x           x坐标
+	 * @param y           y坐标
+	 * @return 是否被阻塞
+	 */
+	public static boolean isBlocked(long[] bits, int wordsPerRow, int x, int y) {
+		return (bits[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	/**
+	 * 更新位图并通知所有监听者(x, y)处的阻塞状态变了
+	 */
+	private void fireBlockedCellChanged(int x, int y, boolean blocked) {
+		if (blocked) {
+			blockedBits[y * blockedWordsPerRow + (x >>> 6)] |= 1L << x;
+		} else {
+			blockedBits[y * blockedWordsPerRow + (x >>> 6)] &= ~(1L << x);
+		}
+		obstacleVersion++;
+		for (int i = 0; i < blockedCellListeners.size(); i++) {
+			blockedCellListeners.get(i).blockedCellChanged(x, y, blocked);
+		}
+	}
+
+
+	// --------------
+	/**
+	 * 每个格子最后一次被观察到的时间步，NEVER_SEEN表示从未观察过
+	 * 探索得分按需计算为 当前时间步 - lastSeen，不再每步遍历全图自增
+	 */
+	private int[] lastSeen;
+
+	/**
+	 * 从未被观察过的格子的lastSeen
+	 */
+	private static final int NEVER_SEEN = Integer.MIN_VALUE;
+
+	/**
+	 * 已观察过的格子的lastSeen之和，用于O(log^2)求锚点窗口的平均探索得分
+	 * 窗口平均得分 = 当前时间步 - 窗口内lastSeen的平均值
+	 */
+	private FenwickTree2D seenSum;
+
+	/**
+	 * 已观察过的格子数，窗口内有未观察过的格子时得分为正无穷
+	 */
+	private FenwickTree2D seenCount;
+
+	/**
+	 * 记忆物品的过期时间轮，第 t mod 长度 个槽保存在时间步t到期的格子(x << 16 | y)
+	 * decayMemory每步只处理到期的槽，不再遍历全图
+	 * 槽里的记录可能已经过时（物品被替换或时间戳被刷新），处理时再核对
+	 */
+	private IntBag[] expiryWheel;
+
+	/**
+	 * 时间轮已经处理到的时间步，Integer.MIN_VALUE表示还未开始
+	 */
+	private int wheelStep = Integer.MIN_VALUE;
+
+	/**
+	 * updateMemory时感受野中原有的对象和时间戳，预先分配，每步复用
+	 */
+	private TWEntity[] previousRef;
+	private int[] previousStep;
 
 	// ==============================================================================
 	// 构造函数
@@ -180,23 +607,42 @@ public class TWAgentWorkingMemory {
 		int mapx = me.getEnvironment().getxDimension();
 		int mapy = me.getEnvironment().getyDimension();
 
-		// 探索得分初始化为正无穷
-		this.explorationScore = new Double[mapx][mapy];
-		this.objects = new TWAgentPercept[mapx][mapy];
-		for (int i = 0; i < mapx; i++) {
-			for (int j = 0; j < mapy; j++) {
-				explorationScore[i][j] = Double.POSITIVE_INFINITY;
-				// 保证objects[i][j]非空，只通过setO和getO读写记忆，保留时间戳
-				objects[i][j] = new TWAgentPercept(null, 0);
-			}
+		this.width = mapx;
+		this.height = mapy;
+		this.objectType = new byte[mapx * mapy];
+		this.observedStep = new int[mapx * mapy];
+		this.objectRef = new TWEntity[mapx * mapy];
+		this.dirty = new boolean[mapx * mapy];
+		this.pendingRef = new TWEntity[mapx * mapy];
+		this.pendingStep = new int[mapx * mapy];
+		this.tileIndex = new SpatialBucketIndex(mapx, mapy, INDEX_BUCKET_SIZE);
+		this.holeIndex = new SpatialBucketIndex(mapx, mapy, INDEX_BUCKET_SIZE);
 
-		}
+		// 所有格子初始为从未观察过，即探索得分为正无穷
+		this.lastSeen = new int[mapx * mapy];
+		Arrays.fill(lastSeen, NEVER_SEEN);
+
+		int window = Parameters.defaultSensorRange * 2 + 1;
+		this.previousRef = new TWEntity[window * window];
+		this.previousStep = new int[window * window];
 
 		this.mySelf = me;
 		this.schedule = schedule;
-		this.memoryGrid = new ObjectGrid2D(mapx, mapy);
 
 		this.closestInSensorRange = new HashMap<>();
+
+		this.seenSum = new FenwickTree2D(mapx, mapy);
+		this.seenCount = new FenwickTree2D(mapx, mapy);
+
+		// 最长的延迟是lifeTime，再留一个槽给当前步
+		this.expiryWheel = new IntBag[Parameters.lifeTime + 2];
+		for (int i = 0; i < expiryWheel.length; i++) {
+			expiryWheel[i] = new IntBag();
+		}
+
+		this.blockedWordsPerRow = (mapx + 63) >>> 6;
+		this.blockedBits = new long[blockedWordsPerRow * mapy];
+		this.agentDistances = new LocalDistanceMap(this, mapx, mapy);
 	}
 
 	// ==============================================================================
@@ -235,20 +681,23 @@ public class TWAgentWorkingMemory {
 		decayMemory();
 
 		/*
-		 * 遍历记忆中此感受野中的物体，将其放入previousSensedObj中供之后比较用，同时清除记忆中的这些物品。
+		 * 遍历记忆中此感受野中的物体，将其放入previousRef/previousStep中供之后比较用，同时清除记忆中的这些物品。
 		 */
-		int senseRadius = Parameters.defaultSensorRange;
-		TWAgentPercept[][] previousSensedObj = new TWAgentPercept[senseRadius * 2 + 1][senseRadius * 2 + 1];
+		int window = Parameters.defaultSensorRange * 2 + 1;
+		int now = getCurrentStep();
 		int visibleX_min = mySelf.getX() - Parameters.defaultSensorRange;
 		int visibleY_min = mySelf.getY() - Parameters.defaultSensorRange;
-		for (int i = 0; i <= Parameters.defaultSensorRange * 2; i++) {
-			for (int j = 0; j <= Parameters.defaultSensorRange * 2; j++) {
+		for (int i = 0; i < window; i++) {
+			for (int j = 0; j < window; j++) {
 				// .................
 				if (mySelf.getEnvironment().isInBounds(i + visibleX_min, j + visibleY_min)) {
-					previousSensedObj[i][j] = objects[i + visibleX_min][j + visibleY_min];
-					this.explorationScore[i + visibleX_min][j + visibleY_min] = 0.0;
-					objects[i + visibleX_min][j + visibleY_min] = new TWAgentPercept(null, schedule.getTime()); // 刷新感知区所有点的时间戳
-					memoryGrid.set(i + visibleX_min, j + visibleY_min, null);
+					int cell = (i + visibleX_min) * height + j + visibleY_min;
+					previousRef[i * window + j] = objectRef[cell];
+					previousStep[i * window + j] = observedStep[cell];
+					markSeen(i + visibleX_min, j + visibleY_min, now);
+					setObject(cell, null);
+					observedStep[cell] = now; // 刷新感知区所有点的时间戳
+					markDirty(cell);
 				}
 			}
 		}
@@ -270,17 +719,36 @@ public class TWAgentWorkingMemory {
 					setFuelStation(x, y);
 				}
 				TWEntity obj = (TWEntity) o;
-				TWAgentPercept prev = previousSensedObj[x-visibleX_min][y-visibleY_min];
-				if (prev.getO() == null) {
-					objects[x][y].setO(obj);
-				} else if (prev.getO().getClass() == obj.getClass()) {
-					objects[x][y] = prev; // 保留prev的时间戳
+				int cell = x * height + y;
+				int prevIndex = (x - visibleX_min) * window + y - visibleY_min;
+				TWEntity prev = previousRef[prevIndex];
+				if (prev == null) {
+					setObject(cell, obj);
+					scheduleExpiry(x, y);
+				} else if (prev.getClass() == obj.getClass()) {
+					setObject(cell, prev);
+					observedStep[cell] = previousStep[prevIndex]; // 保留prev的时间戳
 				}
-				memoryGrid.set(x, y, objects[x][y].getO());
 				updateClosest(obj);
 			}
 		}
 
+		/*
+		 * 感受野先清空再填入，只比较前后两次的结果，避免同一步里重复通知
+		 */
+		for (int i = 0; i < window; i++) {
+			for (int j = 0; j < window; j++) {
+				int x = i + visibleX_min;
+				int y = j + visibleY_min;
+				if (mySelf.getEnvironment().isInBounds(x, y)) {
+					boolean blocked = objectType[x * height + y] == TYPE_OBSTACLE;
+					if (previousRef[i * window + j] instanceof TWObstacle != blocked) {
+						fireBlockedCellChanged(x, y, blocked);
+					}
+				}
+			}
+		}
+
 		/*
 		 * 遍历参数中提供的agent，更新neighbouringAgents
 		 */
@@ -310,62 +778,148 @@ public class TWAgentWorkingMemory {
 	 * 注意处理交叉冲突部分，比如优先自己的感知而非他人记忆
 	 * 注意处理特殊点位比如加油站
 	 *
-	 * @param objectsShared 别人的记忆，是全图的大小的数组
-	 * @param agentPos      别人的位置
+	 * @param shared   别人的记忆
+	 * @param agentPos 别人的位置
 	 */
-	public void mergeMemory(TWAgentPercept[][] objectsShared, Int2D agentPos) {
+	public void mergeMemory(TWAgentWorkingMemory shared, Int2D agentPos) {
 		// ...............
-		for (int i = 0; i < memoryGrid.getWidth(); i++) {
-			for (int j = 0; j < memoryGrid.getHeight(); j++) {
-				if (objectsShared[i][j] != null) {
-					if (objectsShared[i][j].getO() instanceof TWFuelStation && fuelStation == null) {
-						setFuelStation(i, j);
-					}
-					//这片区域是不是自己感知到的版本更新
-					//如果是那就不更新
-					//如果不是那就merge
-					if (objects[i][j].getT() < objectsShared[i][j].getT()) {
-						if (objects[i][j].getO() == null) {
-							objects[i][j].setO(objectsShared[i][j].getO());
-							objects[i][j].setT(objectsShared[i][j].getT());
-							memoryGrid.set(i, j, objects[i][j].getO());
-						} else if (objects[i][j].newerFact(objectsShared[i][j])) {
-							objects[i][j].setT(objectsShared[i][j].getT());
-						}
-					}
+		for (int cell = 0; cell < objectRef.length; cell++) {
+			mergeCell(cell, shared.objectRef[cell], shared.observedStep[cell]);
+		}
+		markSeenAround(agentPos);
+	}
+
+	/**
+	 * 整合记忆增量。只合并别人自上次广播以来改变过的格子，规则与mergeMemory相同
+	 *
+	 * @param shared   别人广播的记忆增量
+	 * @param agentPos 别人的位置
+	 */
+	public void mergeMemory(MemoryDelta shared, Int2D agentPos) {
+		for (int k = 0; k < shared.size(); k++) {
+			mergeCell(shared.getCell(k), shared.getObject(k), shared.getObservedStep(k));
+		}
+		markSeenAround(agentPos);
+	}
+
+	/**
+	 * 用别人记忆中的一个格子更新自己的记忆
+	 *
+	 * @param cell       格子下标
+	 * @param sharedObj  别人记忆中的对象
+	 * @param sharedStep 别人记忆中的时间戳
+	 */
+	private void mergeCell(int cell, TWEntity sharedObj, int sharedStep) {
+		if (sharedObj instanceof TWFuelStation && fuelStation == null) {
+			setFuelStation(cell / height, cell % height);
+		}
+		//这片区域是不是自己感知到的版本更新
+		//如果是那就不更新
+		//如果不是那就merge
+		if (observedStep[cell] < sharedStep) {
+			if (objectRef[cell] == null) {
+				setObject(cell, sharedObj);
+				observedStep[cell] = sharedStep;
+				if (sharedObj != null) {
+					// 空格子没有东西会过期，不用登记
+					scheduleExpiry(cell / height, cell % height);
+				}
+				if (objectType[cell] == TYPE_OBSTACLE) {
+					fireBlockedCellChanged(cell / height, cell % height, true);
 				}
+			} else if (objectRef[cell] == sharedObj) {
+				// 同一个对象的更新观测
+				observedStep[cell] = sharedStep;
+			} else if (pendingRef[cell] == null || pendingStep[cell] < sharedStep) {
+				// 自己记着另一个对象，先留着，等它过期后再合并（null表示别人后来看到这里是空的）
+				pendingRef[cell] = sharedObj;
+				pendingStep[cell] = sharedStep;
 			}
 		}
+	}
+
+	/**
+	 * 别人感受野内的格子都算作刚被观察过
+	 *
+	 * @param agentPos 别人的位置
+	 */
+	public void markSeenAround(Int2D agentPos) {
 		int x = agentPos.x;
 		int y = agentPos.y;
+		int now = getCurrentStep();
 		for (int i = x - Parameters.defaultSensorRange; i <= x + Parameters.defaultSensorRange; i++) {
 			for (int j = y - Parameters.defaultSensorRange; j <= y + Parameters.defaultSensorRange; j++) {
 				if (mySelf.getEnvironment().isInBounds(i, j)) {
-					explorationScore[i][j] = 0.0;
+					markSeen(i, j, now);
 				}
 			}
 		}
 	}
 
 	/**
-	 * 遍历所有记忆中的物品，并加上适当的衰减效果（增加explorationScore）
 	 * 清除掉所有超时的物品
+	 * 只处理时间轮中上次调用以来到期的槽，开销与到期物品数成正比而不是地图面积
+	 * 探索得分由lastSeen按需计算，这里不再需要衰减
 	 */
 	public void decayMemory() {
 		// .......................
-		for (int i = 0; i < memoryGrid.getWidth(); i++) {
-			for (int j = 0; j < memoryGrid.getHeight(); j++) {
-				explorationScore[i][j]++; // Marked
-				if (objects[i][j].getO() != null) {
-					if (!(getEstimatedRemainingLifetime(objects[i][j].getO(), 1.) > 0)) {
-						objects[i][j].setO(null);
-						memoryGrid.set(i, j, null);
+		int now = getCurrentStep();
+		if (wheelStep == Integer.MIN_VALUE) {
+			wheelStep = now - 1;
+		}
+		// 落后超过一圈时每个槽处理一次就够了，没到期的记录会重新登记
+		int steps = Math.min(now - wheelStep, expiryWheel.length);
+		wheelStep = now - steps;
+		while (wheelStep < now) {
+			wheelStep++;
+			IntBag slot = expiryWheel[Math.floorMod(wheelStep, expiryWheel.length)];
+			for (int k = 0; k < slot.size(); k++) {
+				int i = slot.get(k) >>> 16;
+				int j = slot.get(k) & 0xFFFF;
+				int cell = i * height + j;
+				if (objectRef[cell] == null) {
+					continue;
+				}
+				if (!(getEstimatedRemainingLifetime(objectRef[cell], 1.) > 0)) {
+					boolean wasBlocked = objectType[cell] == TYPE_OBSTACLE;
+					setObject(cell, null);
+					if (wasBlocked) {
+						fireBlockedCellChanged(i, j, false);
+					}
+					// 整张合并时别人的观测此后每步都会再提供一次，这里补上被拒绝的那条
+					TWEntity pending = pendingRef[cell];
+					if (pending != null) {
+						pendingRef[cell] = null;
+						if (pendingStep[cell] + Parameters.lifeTime > now) {
+							mergeCell(cell, pending, pendingStep[cell]);
+						}
 					}
+				} else {
+					// 时间戳在登记后被刷新过，按新的到期时间重新登记
+					scheduleExpiry(i, j);
 				}
 			}
+			slot.clear();
 		}
 	}
 
+	/**
+	 * 按(x, y)处记忆的时间戳把它登记到过期时间轮
+	 * 已经过期的放到下一个要处理的槽，超出一圈的先放到最远的槽，届时再重新登记
+	 *
+	 * @param x 横坐标
+	 * @param y 纵坐标
+	 */
+	private void scheduleExpiry(int x, int y) {
+		if (wheelStep == Integer.MIN_VALUE) {
+			wheelStep = getCurrentStep() - 1;
+		}
+		int due = observedStep[x * height + y] + Parameters.lifeTime;
+		due = Math.max(due, wheelStep + 1);
+		due = Math.min(due, wheelStep + expiryWheel.length - 1);
+		expiryWheel[Math.floorMod(due, expiryWheel.length)].add(x << 16 | y);
+	}
+
 	/**
 	 * 获取自己负责区域内特定块的优先列表
 	 * 比如一个包含了自己区域内所有tile的列表
@@ -383,10 +937,19 @@ public class TWAgentWorkingMemory {
 		int y1 = bounds[0].y;
 		int x2 = bounds[2].x;
 		int y2 = bounds[2].y;
+		// tile和hole直接查空间索引，结果按格子下标升序，与逐格扫描的加入顺序一致
+		SpatialBucketIndex index = type == TWTile.class ? tileIndex : type == TWHole.class ? holeIndex : null;
+		if (index != null) {
+			index.query(x1, y1, x2, y2, indexQuery);
+			for (int k = 0; k < indexQuery.size(); k++) {
+				entities.add(objectRef[indexQuery.get(k)]);
+			}
+			return entities;
+		}
 		for (int i = x1; i <= x2; i++) {
 			for (int j = y1; j <= y2; j++) {
 				if (mySelf.getEnvironment().isInBounds(i,j)) {
-					TWEntity o = objects[i][j].getO();
+					TWEntity o = objectRef[i * height + j];
 					if (type.isInstance(o)) {
 						entities.add(o);
 					}
@@ -397,26 +960,29 @@ public class TWAgentWorkingMemory {
 	}
 
 	/**
-	 * 遍历一个锚点区域内所有块的探索的得分来得出锚点整体的探索得分
+	 * 一个锚点区域内所有块的探索得分的平均值，即锚点整体的探索得分
 	 * 用于评估一个锚点区域的探索度，以便优先探索
+	 * 由树状数组求窗口和，不随感知半径增大而变慢
 	 *
 	 * @param anchor 锚点坐标
 	 * @return 浮点数探索得分
 	 */
 	public Double getAnchorExplorationScore(Int2D anchor) {
 		// ......................
-		double score = 0;
-		int exploreCnt = 0;
-		for (int i = anchor.x - Parameters.defaultSensorRange; i <= anchor.x + Parameters.defaultSensorRange; i++) {
-			for (int j = anchor.y - Parameters.defaultSensorRange; j <= anchor.y + Parameters.defaultSensorRange; j++) {
-				if (i >= 0 && i < memoryGrid.getWidth() && j >= 0 && j < memoryGrid.getHeight()) {
-					exploreCnt++;
-//					if (anchor.x == mySelf.getX() && anchor.y == mySelf.getY()) {
-//						System.out.printf("Position: %d, %d ExplorationScore: %f\n", i, j, explorationScore[i][j]);
-//					}
-					score = score * (1. - 1. / exploreCnt) + explorationScore[i][j] * (1. / exploreCnt);
-				}
-			}
+		// 窗口截到地图内，两次树状数组查询代替逐格求平均
+		int x1 = Math.max(anchor.x - Parameters.defaultSensorRange, 0);
+		int y1 = Math.max(anchor.y - Parameters.defaultSensorRange, 0);
+		int x2 = Math.min(anchor.x + Parameters.defaultSensorRange, width - 1);
+		int y2 = Math.min(anchor.y + Parameters.defaultSensorRange, height - 1);
+		if (x1 > x2 || y1 > y2) {
+			return 0.;
+		}
+		int exploreCnt = (x2 - x1 + 1) * (y2 - y1 + 1);
+		double score;
+		if (seenCount.sum(x1, y1, x2, y2) < exploreCnt) {
+			score = Double.POSITIVE_INFINITY;
+		} else {
+			score = getCurrentStep() - (double) seenSum.sum(x1, y1, x2, y2) / exploreCnt;
 		}
 //		if (anchor.x == mySelf.getX() && anchor.y == mySelf.getY()) {
 //			System.out.printf("Cur Location: %d %d, Cur ExplorationScore: %f\n", mySelf.getX(), mySelf.getY(), explorationScore[mySelf.getX()][mySelf.getY()]);
@@ -425,6 +991,34 @@ public class TWAgentWorkingMemory {
 		return score;
 	}
 
+	/**
+	 * 记录(x, y)在now时被观察到，同时更新窗口求和用的树状数组
+	 *
+	 * @param x   横坐标
+	 * @param y   纵坐标
+	 * @param now 当前时间步
+	 */
+	private void markSeen(int x, int y, int now) {
+		int seen = lastSeen[x * height + y];
+		if (seen == now) {
+			return;
+		}
+		if (seen == NEVER_SEEN) {
+			seenCount.add(x, y, 1);
+			seenSum.add(x, y, now);
+		} else {
+			seenSum.add(x, y, now - seen);
+		}
+		lastSeen[x * height + y] = now;
+	}
+
+	/**
+	 * 当前时间步，用于记录和比较lastSeen
+	 */
+	private int getCurrentStep() {
+		return (int) schedule.getTime();
+	}
+
 	/**
 	 * 返回预估剩余时间。（原代码，可根据需求更改）
 	 *
@@ -433,10 +1027,7 @@ public class TWAgentWorkingMemory {
 	 * @return 浮点数时间
 	 */
 	public double getEstimatedRemainingLifetime(TWEntity o, double threshold) {
-		if (objects[o.getX()][o.getY()] == null)
-			return 0;
-		else
-			return (Parameters.lifeTime * threshold) - (this.getSimulationTime() - objects[o.getX()][o.getY()].getT());
+		return (Parameters.lifeTime * threshold) - (this.getSimulationTime() - observedStep[o.getX() * height + o.getY()]);
 	}
 
 	// ==============================================================================
@@ -452,7 +1043,8 @@ public class TWAgentWorkingMemory {
 	 * @return （修正后的）距离因子
 	 */
 	public double getTSPDistance(TWEntity a, TWEntity b, boolean TSPHeuristic) {
-		double oDist = a.getDistanceTo(b);
+		// 从自己出发时用路径距离，绕开记忆中的障碍物
+		double oDist = a == mySelf ? getPathDistance(b) : a.getDistanceTo(b);
 		// Modifies Manhattan distance by lifetime remaining, so between two equidistant
 		// objects, the one with a shorter lifetime is closer
 		if (TSPHeuristic) {
@@ -471,7 +1063,17 @@ public class TWAgentWorkingMemory {
 	public void updateMemory(TWEntity[][] sensed, int xOffset, int yOffset) {
 		for (int x = 0; x < sensed.length; x++) {
 			for (int y = 0; y < sensed[x].length; y++) {
-				objects[x + xOffset][y + yOffset] = new TWAgentPercept(sensed[x][y], this.getSimulationTime());
+				int cell = (x + xOffset) * height + y + yOffset;
+				boolean wasBlocked = objectType[cell] == TYPE_OBSTACLE;
+				setObject(cell, sensed[x][y]);
+				observedStep[cell] = getCurrentStep();
+				markDirty(cell);
+				if (sensed[x][y] != null) {
+					scheduleExpiry(x + xOffset, y + yOffset);
+				}
+				if (wasBlocked != sensed[x][y] instanceof TWObstacle) {
+					fireBlockedCellChanged(x + xOffset, y + yOffset, !wasBlocked);
+				}
 			}
 		}
 	}
@@ -483,7 +1085,14 @@ public class TWAgentWorkingMemory {
 	 * @param y y坐标
 	 */
 	public void removeAgentPercept(int x, int y) {
-		objects[x][y] = null;
+		int cell = x * height + y;
+		boolean wasBlocked = objectType[cell] == TYPE_OBSTACLE;
+		setObject(cell, null);
+		observedStep[cell] = 0;
+		markDirty(cell);
+		if (wasBlocked) {
+			fireBlockedCellChanged(x, y, false);
+		}
 	}
 
 	/**
@@ -551,11 +1160,11 @@ public class TWAgentWorkingMemory {
 			x = offset.x + sx;
 			y = offset.y + sy;
 
-			if (mySelf.getEnvironment().isInBounds(x, y) && objects[x][y] != null) {
-				o = (TWObject) objects[x][y].getO();// get mem object
+			if (mySelf.getEnvironment().isInBounds(x, y)) {
+				o = (TWObject) objectRef[x * height + y];// get mem object
 				if (type.isInstance(o)) {// if it's not the type we're looking for do nothing
 
-					time = objects[x][y].getT();// get time of memory
+					time = observedStep[x * height + y];// get time of memory
 
 					if (this.getSimulationTime() - time <= threshold) {
 						// if we found one satisfying time, then return
@@ -583,18 +1192,14 @@ public class TWAgentWorkingMemory {
 	 * @return true if the cell is blocked in our memory
 	 */
 	public boolean isCellBlocked(int tx, int ty) {
-
-		// no memory at all, so assume not blocked
-		if (objects[tx][ty] == null) {
-			return false;
-		}
-
-		TWEntity e = (TWEntity) objects[tx][ty].getO();
-		// is it an obstacle?
-		return (e instanceof TWObstacle);
+		// the bitmap mirrors whether objectType marks (tx, ty) as an obstacle
+		return isBlocked(blockedBits, blockedWordsPerRow, tx, ty);
 	}
 
+	/**
+	 * 同getAgentPercept()，每次调用都会分配副本
+	 */
 	public TWAgentPercept[][] getObjects() {
-		return objects;
+		return getAgentPercept();
 	}
 }
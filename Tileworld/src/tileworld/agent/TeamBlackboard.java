@@ -0,0 +1,138 @@
+package tileworld.agent;
+
+import tileworld.environment.TWEntity;
+
+/**
+ * 全队共享的版本化黑板，代替两两之间的记忆合并
+ * 每个格子保存最新的一条观测（对象，时间戳），由各agent的感知写入，所有agent读取
+ * 每次写入都会得到一个递增的版本号，agent只需读取自己上次同步之后变化的格子
+ *
+ * 支持并发写入：格子按条带加锁，版本号分配和变化日志由日志锁保护
+ * 加锁顺序固定为先条带后日志，读取时两者不嵌套，不会死锁
+ *
+ * 注意：各agent仍在自己的TWAgentWorkingMemory中保留一份完整副本（按版本号增量同步），
+ * 黑板省下的是两两合并的计算量，并没有减少每个agent的记忆占用
+ */
+public class TeamBlackboard {
+
+	/**
+	 * 条带锁个数，必须是2的幂
+	 */
+	private static final int STRIPES = 64;
+
+	private final TWEntity[] objects;
+	private final int[] observedSteps;
+	private final boolean[] written;
+	private final Object[] stripes;
+
+	/**
+	 * 变化日志，环形缓冲区，版本号v的写入保存在第 v mod 长度 个位置
+	 */
+	private final int[] logCells;
+	private final Object logLock = new Object();
+	/**
+	 * 最新的版本号，也是日志中写入的总条数
+	 */
+	private long version;
+
+	/**
+	 * 每个格子最后一次变化时的版本号，日志被覆盖时用于全量扫描
+	 */
+	private final long[] cellVersions;
+
+	/**
+	 * @param width  地图宽度
+	 * @param height 地图高度
+	 */
+	public TeamBlackboard(int width, int height) {
+		int cells = width * height;
+		this.objects = new TWEntity[cells];
+		this.observedSteps = new int[cells];
+		this.written = new boolean[cells];
+		this.cellVersions = new long[cells];
+		this.stripes = new Object[STRIPES];
+		for (int i = 0; i < STRIPES; i++) {
+			stripes[i] = new Object();
+		}
+		int capacity = Math.max(cells, 4096);
+		this.logCells = new int[capacity];
+	}
+
+	/**
+	 * 写入一条观测，比黑板上已有的旧时才会被忽略
+	 * 同一时间步的两条观测以先写入的为准（同一步看到的是同一个世界）
+	 *
+	 * @param cell         格子下标 x * height + y
+	 * @param o            观测到的对象，可为null
+	 * @param observedStep 观测的时间步
+	 * @return 黑板是否因此改变
+	 */
+	public boolean write(int cell, TWEntity o, int observedStep) {
+		synchronized (stripes[cell & (STRIPES - 1)]) {
+			if (written[cell] && observedSteps[cell] >= observedStep) {
+				return false;
+			}
+			objects[cell] = o;
+			observedSteps[cell] = observedStep;
+			written[cell] = true;
+			synchronized (logLock) {
+				version++;
+				int slot = (int) (version % logCells.length);
+				logCells[slot] = cell;
+				cellVersions[cell] = version;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return 当前的版本号
+	 */
+	public long getVersion() {
+		synchronized (logLock) {
+			return version;
+		}
+	}
+
+	/**
+	 * 读取版本since之后变化过的格子的最新内容
+	 * 同一格子可能出现多次，合并时可以重复处理
+	 *
+	 * @param since 上次同步时的版本号
+	 * @param out   输出，会先被清空
+	 * @return 本次读取到的版本号，下次同步时传入
+	 */
+	public long readChanges(long since, MemoryDelta out) {
+		out.clear();
+		long upTo;
+		int count;
+		int[] changed;
+		synchronized (logLock) {
+			upTo = version;
+			if (upTo - since <= logCells.length) {
+				// 日志还保留着since之后的全部写入
+				count = (int) (upTo - since);
+				changed = new int[count];
+				for (int k = 0; k < count; k++) {
+					changed[k] = logCells[(int) ((since + 1 + k) % logCells.length)];
+				}
+			} else {
+				// 落后太多，日志已被覆盖，按格子版本号全量扫描
+				count = 0;
+				changed = new int[cellVersions.length];
+				for (int cell = 0; cell < cellVersions.length; cell++) {
+					if (cellVersions[cell] > since) {
+						changed[count++] = cell;
+					}
+				}
+			}
+		}
+		for (int k = 0; k < count; k++) {
+			int cell = changed[k];
+			synchronized (stripes[cell & (STRIPES - 1)]) {
+				out.add(cell, objects[cell], observedSteps[cell]);
+			}
+		}
+		return upTo;
+	}
+}
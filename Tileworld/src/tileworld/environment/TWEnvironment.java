@@ -18,6 +18,8 @@ import tileworld.agent.Message;
 import tileworld.agent.SimpleTWAgent;
 import tileworld.agent.TWAgentHybrid;
 import tileworld.agent.TWAgent;
+import tileworld.agent.TeamBlackboard;
+import tileworld.planners.ReservationTable;
 
 /**
  * TWEnvironment
@@ -62,6 +64,18 @@ public class TWEnvironment extends SimState implements Steppable {
 
     private int reward;
 
+    /**
+     * Space-time reservations shared by agents planning cooperatively, see
+     * CooperativePathGenerator
+     */
+    private ReservationTable reservationTable;
+
+    /**
+     * Team knowledge shared by agents using blackboard memory sharing, see
+     * TeamBlackboard. Created on first use.
+     */
+    private TeamBlackboard teamBlackboard;
+
     // private TWFuelStation getFuelingStation() {
     // return fuelingStation;
     // }
@@ -99,6 +113,10 @@ public class TWEnvironment extends SimState implements Steppable {
         // create my grid
         this.objectGrid = new ObjectGrid2D(getxDimension(), getyDimension());
         this.agentGrid = new ObjectGrid2D(getxDimension(), getyDimension());
+        // reservations of a previous run refer to agents and times that no longer exist
+        this.reservationTable = new ReservationTable();
+        // so do the blackboard's time stamps, which would reject this run's observations
+        this.teamBlackboard = null;
         if (TWGUI.instance != null) {
             TWGUI.instance.resetDisplay();
         }
@@ -224,6 +242,17 @@ public class TWEnvironment extends SimState implements Steppable {
         return agentGrid;
     }
 
+    public ReservationTable getReservationTable() {
+        return reservationTable;
+    }
+
+    public synchronized TeamBlackboard getTeamBlackboard() {
+        if (teamBlackboard == null) {
+            teamBlackboard = new TeamBlackboard(getxDimension(), getyDimension());
+        }
+        return teamBlackboard;
+    }
+
     /**
      * @return the xDimension
      */
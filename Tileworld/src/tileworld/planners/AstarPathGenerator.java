@@ -4,9 +4,9 @@
  */
 package tileworld.planners;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentWorkingMemory;
 import tileworld.environment.TWEnvironment;
 
 /**
@@ -30,23 +30,48 @@ import tileworld.environment.TWEnvironment;
  */
 public class AstarPathGenerator implements TWPathGenerator {
 
-    /** The set of nodes that have been searched through */
-    private ArrayList closed = new ArrayList();
     /** The set of nodes that we do not yet consider fully searched */
-    private SortedList open = new SortedList();
+    private NodeHeap open;
     /** The map being searched */
     private TWEnvironment map;
     /** The maximum depth of search we're willing to accept before giving up */
     private int maxSearchDistance;
-    /** The complete set of nodes across the map */
+    /** The complete set of nodes across the map, owned by the workspace */
     private Node[][] nodes;
+    /**
+     * The search state borrowed from this thread's workspace for the current
+     * search, see {@link Workspace}
+     */
+    private Workspace workspace;
     /** True if we allow diaganol movement */
     private boolean allowDiagMovement = false;
     /** Reference to this agent, for looking in memory */
     private TWAgent agent;
+    /**
+     * The path returned by findPath. It is refilled by every search, so a
+     * caller must be done with (or copy) one result before asking for the next
+     */
+    private TWPath path = new TWPath(0, 0, 64);
+
+    /** Maximum number of node expansions per search, 0 for no limit */
+    private int maxExpansions;
+    /** Maximum time per search in nanoseconds, 0 for no limit */
+    private long maxNanos;
+    /**
+     * Inflation of the heuristic (weighted A*). Values above 1 expand fewer
+     * nodes at the price of paths up to this factor longer than optimal
+     */
+    private double weight = 1.0;
+    /** Estimates the remaining cost, see {@link #setHeuristic(TWHeuristic)} */
+    private TWHeuristic heuristic = new ManhattanHeuristic();
+    /** Number of nodes expanded by the last search */
+    private int expansions;
+    /** True if the last path stops short of the target because the budget ran out */
+    private boolean partial;
 
     /**
-     * Use the Euclidian distance heuristic here (could also try manhattan)
+     * The Euclidian distance between two cells. This used to be the search
+     * heuristic, which is now pluggable, see {@link #setHeuristic(TWHeuristic)}
      *
      * @param currentX
      * @param currentY
@@ -73,34 +98,88 @@ public class AstarPathGenerator implements TWPathGenerator {
         this.agent = agent;
         this.map = map;
         this.maxSearchDistance = maxSearchDistance;
+        // the nodes used to store information about plan and map are borrowed
+        // from the thread's workspace when searching
+    }
 
-        //create the nodes used to store information about plan and map
-        nodes = new Node[map.getxDimension()][map.getyDimension()];
-        for (int x = 0; x < map.getxDimension(); x++) {
-            for (int y = 0; y < map.getyDimension(); y++) {
-                nodes[x][y] = new Node(x, y);
-            }
-        }
+    /**
+     * Limit the work done by each search. When a limit is hit before the
+     * target is reached, findPath returns a partial path to the expanded node
+     * closest to the target (by heuristic) instead of giving up, so callers
+     * that replan every step still head the right way.
+     *
+     * @param maxExpansions maximum node expansions per search, 0 for no limit
+     * @param maxNanos      maximum nanoseconds per search, 0 for no limit
+     * @param weight        heuristic inflation, 1 for plain A*
+     */
+    public void setBudget(int maxExpansions, long maxNanos, double weight) {
+        this.maxExpansions = maxExpansions;
+        this.maxNanos = maxNanos;
+        this.weight = weight;
+    }
+
+    /**
+     * Replace the heuristic, ManhattanHeuristic by default. Compare
+     * getExpansions() to see how well a heuristic guides the search.
+     *
+     * @param heuristic an admissible heuristic
+     */
+    public void setHeuristic(TWHeuristic heuristic) {
+        this.heuristic = heuristic;
+    }
+
+    /**
+     * @return the number of nodes expanded by the last search
+     */
+    public int getExpansions() {
+        return expansions;
+    }
+
+    /**
+     * @return true if the last path returned ends short of the target
+     */
+    public boolean isPartial() {
+        return partial;
     }
 
     /**
      * @see PathFinder#findPath(Mover, int, int, int, int)
      */
     public TWPath findPath(int sx, int sy, int tx, int ty) {
+        // read the memory's obstacle bitmap directly in the inner loop
+        long[] blocked = agent.getMemory().getBlockedBits();
+        int wordsPerRow = agent.getMemory().getBlockedWordsPerRow();
+
+        expansions = 0;
+        partial = false;
+
         // easy first check, if the destination is blocked, we can't get there
-        if (agent.getMemory().isCellBlocked(tx, ty)) {
+        if (TWAgentWorkingMemory.isBlocked(blocked, wordsPerRow, tx, ty)) {
             return null;
         }
+        long deadline = maxNanos > 0 ? System.nanoTime() + maxNanos : 0;
+        boolean budgetExhausted = false;
+
+        // borrow this thread's nodes and start a new search generation, every
+        // node left over from the last search (of any generator on this
+        // thread) is now stale and will be reset lazily when reached
+        workspace = Workspace.get(map.getxDimension(), map.getyDimension());
+        nodes = workspace.nodes;
+        open = workspace.open;
+        nextSearch();
 
         // initial state for A*. The closed group is empty. Only the starting
         // tile is in the open list and it's cost is zero, i.e. we're already there
-        nodes[sx][sy].cost = 0;
-        nodes[sx][sy].depth = 0;
-        closed.clear();
+        Node start = getNode(sx, sy);
+        start.cost = 0;
+        start.heuristic = weight * getHeuristicCost(sx, sy, tx, ty);
+        start.depth = 0;
         open.clear();
-        open.add(nodes[sx][sy]);
+        open.add(start);
 
-        nodes[tx][ty].parent = null;
+        Node goal = getNode(tx, ty);
+        // the expanded node closest to the goal, the end of a partial path
+        Node best = start;
 
         // while we haven't found the goal and haven't exceeded our max search depth
         int maxDepth = 0;
@@ -108,12 +187,24 @@ public class AstarPathGenerator implements TWPathGenerator {
             // pull out the first node in our open list, this is determined to
             // be the most likely to be the next step based on our heuristic
             Node current = getFirstInOpen();
-            if (current == nodes[tx][ty]) {
+            if (current == goal) {
                 break;
             }
 
+            // stop if this search has used up its budget
+            if ((maxExpansions > 0 && expansions >= maxExpansions)
+                    || (deadline != 0 && (expansions & 63) == 0 && System.nanoTime() > deadline)) {
+                budgetExhausted = true;
+                break;
+            }
+            expansions++;
+
             removeFromOpen(current);
             addToClosed(current);
+            if (current.heuristic < best.heuristic
+                    || (current.heuristic == best.heuristic && current.cost < best.cost)) {
+                best = current;
+            }
 
             // search through all the neighbours of the current node evaluating
             // them as next steps
@@ -139,21 +230,25 @@ public class AstarPathGenerator implements TWPathGenerator {
 
                     //Check that the cell is valid (in bounds) and that according
                     //to our memory the cell isn't blocked
-                    if (isValidLocation(sx, sy, xp, yp) && !agent.getMemory().isCellBlocked(xp, yp)) {
+                    if (isValidLocation(sx, sy, xp, yp) && !TWAgentWorkingMemory.isBlocked(blocked, wordsPerRow, xp, yp)) {
                         // the cost to get to this node is cost the current plus the movement
                         // cost to reach this node. Note that the heursitic value is only used
                         // in the sorted open list
                         double nextStepCost = current.cost + getMovementCost(current.x, current.y, xp, yp);
-                        Node neighbour = nodes[xp][yp];
+                        Node neighbour = getNode(xp, yp);
                         neighbour.setVisited(true);
 
                         // if the new cost we've determined for this node is lower than
                         // it has been previously makes sure the node hasn't been discarded. We've
                         // determined that there might have been a better path to get to
-                        // this node so it needs to be re-evaluated
+                        // this node so it needs to be re-evaluated. A node still in the open
+                        // list is simply moved up the heap in place.
                         if (nextStepCost < neighbour.cost) {
                             if (inOpenList(neighbour)) {
-                                removeFromOpen(neighbour);
+                                neighbour.cost = nextStepCost;
+                                maxDepth = Math.max(maxDepth, neighbour.setParent(current));
+                                open.decreaseKey(neighbour);
+                                continue;
                             }
                             if (inClosedList(neighbour)) {
                                 removeFromClosed(neighbour);
@@ -165,7 +260,7 @@ public class AstarPathGenerator implements TWPathGenerator {
                         // step (i.e. to the open list)
                         if (!inOpenList(neighbour) && !(inClosedList(neighbour))) {
                             neighbour.cost = nextStepCost;
-                            neighbour.heuristic = getHeuristicCost(xp, yp, tx, ty);
+                            neighbour.heuristic = weight * getHeuristicCost(xp, yp, tx, ty);
                             maxDepth = Math.max(maxDepth, neighbour.setParent(current));
                             addToOpen(neighbour);
                         }
@@ -175,19 +270,26 @@ public class AstarPathGenerator implements TWPathGenerator {
         }
 
         // since we've got an empty open list or we've run out of search
-        // there was no path. Just return null
-        if (nodes[tx][ty].parent == null) {
-            return null;
+        // there was no path. Just return null, unless the budget cut the
+        // search short, then head for the most promising node so far
+        if (goal.parent == null) {
+            if (!budgetExhausted || best == start) {
+                return null;
+            }
+            partial = true;
+            goal = best;
+            tx = best.x;
+            ty = best.y;
         }
 
         // At this point we've definitely found a path so we can uses the parent
         // references of the nodes to find out way from the target location back
         // to the start recording the nodes on the way.
-        TWPath path = new TWPath(tx,ty);
-        Node target = nodes[tx][ty];
+        path.reset(tx, ty);
+        Node target = goal;
         //skip the goal as the step before will tell us how to get there.
         target = target.parent;
-        while (target != nodes[sx][sy]) {
+        while (target != start) {
             path.prependStep(target.x, target.y);
             target = target.parent;
         }
@@ -200,6 +302,40 @@ public class AstarPathGenerator implements TWPathGenerator {
         return path;
     }
 
+    /**
+     * Begin a new search generation. On the (very rare) wrap around of the
+     * counter every node is stamped stale explicitly so that no node can
+     * accidentally match the new generation.
+     */
+    private void nextSearch() {
+        workspace.searchId++;
+        if (workspace.searchId == 0) {
+            for (int x = 0; x < nodes.length; x++) {
+                for (int y = 0; y < nodes[x].length; y++) {
+                    nodes[x][y].searchId = -1;
+                }
+            }
+            workspace.searchId = 1;
+        }
+    }
+
+    /**
+     * Get the node at the given location, resetting it first if it was last
+     * touched by an earlier search. Setup cost is therefore proportional to
+     * the number of nodes visited rather than the size of the map.
+     *
+     * @param x The x coordinate of the node
+     * @param y The y coordinate of the node
+     * @return The node, valid for the current search
+     */
+    protected Node getNode(int x, int y) {
+        Node node = nodes[x][y];
+        if (node.searchId != workspace.searchId) {
+            node.reset(workspace.searchId);
+        }
+        return node;
+    }
+
     /**
      * Get the first element from the open list. This is the next
      * one to be searched.
@@ -207,7 +343,7 @@ public class AstarPathGenerator implements TWPathGenerator {
      * @return The first element in the open list
      */
     protected Node getFirstInOpen() {
-        return (Node) open.first();
+        return open.first();
     }
 
     /**
@@ -244,7 +380,7 @@ public class AstarPathGenerator implements TWPathGenerator {
      * @param node The node to add to the closed list
      */
     protected void addToClosed(Node node) {
-        closed.add(node);
+        node.closed = true;
     }
 
     /**
@@ -254,7 +390,7 @@ public class AstarPathGenerator implements TWPathGenerator {
      * @return True if the node specified is in the closed list
      */
     protected boolean inClosedList(Node node) {
-        return closed.contains(node);
+        return node.closed;
     }
 
     /**
@@ -263,7 +399,7 @@ public class AstarPathGenerator implements TWPathGenerator {
      * @param node The node to remove from the closed list
      */
     protected void removeFromClosed(Node node) {
-        closed.remove(node);
+        node.closed = false;
     }
 
     /**
@@ -307,78 +443,198 @@ public class AstarPathGenerator implements TWPathGenerator {
      * @return The heuristic cost assigned to the tile
      */
     public double getHeuristicCost(int x, int y, int tx, int ty) {
-        return this.getCost(x, y, tx, ty);
+        return heuristic.getCost(x, y, tx, ty);
     }
 
     /**
-     * A simple sorted list
-     *
-     * @author kevin
+     * The node grid and open list of a search. Agents are stepped one at a
+     * time, so a search never overlaps another search on the same thread and
+     * every generator on a thread can share one workspace. Planner memory is
+     * then proportional to the number of threads rather than the number of
+     * agents. Nodes are reset lazily by the shared generation counter, so
+     * handing the workspace from one agent to the next costs nothing.
+     */
+    private static final class Workspace {
+
+        /** The workspace of each thread */
+        private static final ThreadLocal<Workspace> POOL = new ThreadLocal<Workspace>();
+
+        /** The complete set of nodes across the map */
+        private final Node[][] nodes;
+        /** The open list */
+        private final NodeHeap open = new NodeHeap();
+        /**
+         * Generation counter of the current search. A node whose stamp differs
+         * from this still holds state from an earlier search and is reset the
+         * first time this search touches it, see {@link AstarPathGenerator#getNode(int, int)}
+         */
+        private int searchId;
+
+        private Workspace(int width, int height) {
+            nodes = new Node[width][height];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    nodes[x][y] = new Node(x, y);
+                }
+            }
+        }
+
+        /**
+         * Borrow the calling thread's workspace, creating it on first use or
+         * when the map size differs from the previous one
+         */
+        private static Workspace get(int width, int height) {
+            Workspace workspace = POOL.get();
+            if (workspace == null || workspace.nodes.length != width || workspace.nodes[0].length != height) {
+                workspace = new Workspace(width, height);
+                POOL.set(workspace);
+            }
+            return workspace;
+        }
+    }
+
+    /**
+     * An indexed binary min-heap of nodes ordered by estimated total cost
+     * (cost + heuristic). Each node remembers its slot in the heap so that
+     * membership tests are O(1) and a node whose cost has dropped can be
+     * sifted up in place (decrease-key) instead of re-sorting the whole list.
      */
-    private class SortedList {
+    private static class NodeHeap {
 
-        /** The list of elements */
-        private ArrayList list = new ArrayList();
+        /** The heap storage, element 0 is the cheapest node */
+        private Node[] heap = new Node[64];
+        /** The number of nodes currently in the heap */
+        private int size;
 
         /**
-         * Retrieve the first element from the list
+         * Retrieve the cheapest node without removing it
          *
-         * @return The first element from the list
+         * @return The first element of the heap
          */
-        public Object first() {
-            return list.get(0);
+        public Node first() {
+            return heap[0];
         }
 
         /**
-         * Empty the list
+         * Empty the heap, marking every remaining node as no longer open
          */
         public void clear() {
-            list.clear();
+            for (int i = 0; i < size; i++) {
+                heap[i].heapIndex = -1;
+                heap[i] = null;
+            }
+            size = 0;
         }
 
         /**
-         * Add an element to the list - causes sorting
+         * Add a node to the heap
          *
-         * @param o The element to add
+         * @param node The node to add
          */
-        public void add(Object o) {
-            list.add(o);
-            Collections.sort(list);
+        public void add(Node node) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            heap[size] = node;
+            node.heapIndex = size;
+            size++;
+            siftUp(node.heapIndex);
         }
 
         /**
-         * Remove an element from the list
+         * Remove a node from anywhere in the heap
          *
-         * @param o The element to remove
+         * @param node The node to remove
          */
-        public void remove(Object o) {
-            list.remove(o);
+        public void remove(Node node) {
+            int i = node.heapIndex;
+            if (i < 0) {
+                return;
+            }
+            size--;
+            node.heapIndex = -1;
+            if (i == size) {
+                heap[size] = null;
+                return;
+            }
+            Node last = heap[size];
+            heap[size] = null;
+            heap[i] = last;
+            last.heapIndex = i;
+            siftDown(i);
+            siftUp(last.heapIndex);
         }
 
         /**
-         * Get the number of elements in the list
+         * Restore heap order after the key of a node in the heap has been
+         * lowered
          *
-         * @return The number of element in the list
+         * @param node The node whose cost has decreased
+         */
+        public void decreaseKey(Node node) {
+            siftUp(node.heapIndex);
+        }
+
+        /**
+         * Get the number of nodes in the heap
+         *
+         * @return The number of nodes in the heap
          */
         public int size() {
-            return list.size();
+            return size;
         }
 
         /**
-         * Check if an element is in the list
+         * Check if a node is in the heap
          *
-         * @param o The element to search for
-         * @return True if the element is in the list
+         * @param node The node to search for
+         * @return True if the node is in the heap
          */
-        public boolean contains(Object o) {
-            return list.contains(o);
+        public boolean contains(Node node) {
+            return node.heapIndex >= 0;
+        }
+
+        private void siftUp(int i) {
+            Node node = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                Node p = heap[parent];
+                if (node.compareTo(p) >= 0) {
+                    break;
+                }
+                heap[i] = p;
+                p.heapIndex = i;
+                i = parent;
+            }
+            heap[i] = node;
+            node.heapIndex = i;
+        }
+
+        private void siftDown(int i) {
+            Node node = heap[i];
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < size && heap[right].compareTo(heap[child]) < 0) {
+                    child = right;
+                }
+                if (node.compareTo(heap[child]) <= 0) {
+                    break;
+                }
+                heap[i] = heap[child];
+                heap[i].heapIndex = i;
+                i = child;
+            }
+            heap[i] = node;
+            node.heapIndex = i;
         }
     }
 
     /**
      * A single node in the search graph
      */
-    protected class Node implements Comparable {
+    protected static class Node implements Comparable {
 
         /** The x coordinate of the node */
         private int x;
@@ -392,6 +648,12 @@ public class AstarPathGenerator implements TWPathGenerator {
         private double heuristic;
         /** The search depth of this node */
         private int depth;
+        /** The position of this node in the open heap, -1 if not open */
+        private int heapIndex = -1;
+        /** True if this node is in the closed list */
+        private boolean closed;
+        /** The search generation that last touched this node */
+        private int searchId;
         /** 
          * In the original code, visited was part of the map. However, 
          * because some implementations may not use path finding (reactive) 
@@ -410,6 +672,22 @@ public class AstarPathGenerator implements TWPathGenerator {
             this.y = y;
         }
 
+        /**
+         * Clear all search state left over from an earlier search
+         *
+         * @param searchId The generation of the search now using this node
+         */
+        private void reset(int searchId) {
+            this.searchId = searchId;
+            cost = Double.MAX_VALUE;
+            heuristic = 0;
+            parent = null;
+            depth = 0;
+            heapIndex = -1;
+            closed = false;
+            visited = false;
+        }
+
         /**
          * Set the parent of this node
          *
@@ -0,0 +1,232 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+
+import tileworld.agent.TWAgentWorkingMemory;
+
+/**
+ * BitboardFloodFill
+ *
+ * Description: A flood fill over the memory's obstacle bitmap that expands
+ * 64 cells per long operation. The reached set is a bitboard laid out like
+ * TWAgentWorkingMemory.getBlockedBits() (row-major, bit x of row y), and one
+ * BFS step dilates it by one cell in every direction with shifts and ORs,
+ * then masks out blocked cells:
+ *
+ * next = (reached | reached << 1 | reached >>> 1 | row above | row below) & free
+ *
+ * After k steps the reached set holds exactly the cells within k steps of
+ * the source. Only the band of rows the fill can have reached is touched:
+ * free cells are taken from the bitmap row by row as the band grows, and
+ * the next fill clears only the rows this one wrote, so a fill bounded to k
+ * steps costs O(k * wordsPerRow) whatever the map height. This answers "can this cell be reached within k steps" or "is this zone
+ * cut off" far faster than a per-cell BFS. Per-cell distances can be
+ * recorded too; that costs one write per newly reached cell but still
+ * expands the frontier word-parallel.
+ */
+public class BitboardFloodFill {
+
+    /** Distance of cells that were not reached */
+    public static final int UNREACHED = Integer.MAX_VALUE;
+
+    private final TWAgentWorkingMemory memory;
+    private final int width;
+    private final int height;
+    private final int wordsPerRow;
+    /** Valid bits of the last word of each row */
+    private final long lastWordMask;
+
+    private long[] reached;
+    private long[] next;
+    /** Unblocked cells, valid for the rows of the current band */
+    private final long[] free;
+    /**
+     * Rows written by the last fill. Both reached and next are zero outside
+     * them, so the next fill only has to clear these
+     */
+    private int bandLo;
+    private int bandHi = -1;
+
+    /** Distance of each reached cell, indexed x * height + y, valid where stamp matches */
+    private final int[] dist;
+    private final int[] stamp;
+    private int fillId;
+    private boolean distancesRecorded;
+
+    /**
+     * @param memory the memory supplying blocked cells
+     * @param width  map width
+     * @param height map height
+     */
+    public BitboardFloodFill(TWAgentWorkingMemory memory, int width, int height) {
+        this.memory = memory;
+        this.width = width;
+        this.height = height;
+        this.wordsPerRow = memory.getBlockedWordsPerRow();
+        int tail = width & 63;
+        this.lastWordMask = tail == 0 ? -1L : (1L << tail) - 1;
+        this.reached = new long[wordsPerRow * height];
+        this.next = new long[wordsPerRow * height];
+        this.free = new long[wordsPerRow * height];
+        this.dist = new int[width * height];
+        this.stamp = new int[width * height];
+    }
+
+    /**
+     * Flood fill from (sx, sy) for at most maxSteps steps.
+     *
+     * @param sx               x-coordinate of the source
+     * @param sy               y-coordinate of the source
+     * @param maxSteps         maximum number of steps, i.e. the distance bound
+     * @param recordDistances  true to record the distance of every reached cell
+     * @return the number of steps taken, less than maxSteps if the fill ran
+     *         out of cells to reach
+     */
+    public int fill(int sx, int sy, int maxSteps, boolean recordDistances) {
+        if (bandHi >= bandLo) {
+            Arrays.fill(reached, bandLo * wordsPerRow, (bandHi + 1) * wordsPerRow, 0L);
+            Arrays.fill(next, bandLo * wordsPerRow, (bandHi + 1) * wordsPerRow, 0L);
+        }
+        long[] blocked = memory.getBlockedBits();
+        loadFree(blocked, sy);
+        bandLo = sy;
+        bandHi = sy;
+
+        distancesRecorded = recordDistances;
+        if (recordDistances) {
+            fillId++;
+            if (fillId == 0) {
+                Arrays.fill(stamp, -1);
+                fillId = 1;
+            }
+            stamp[sx * height + sy] = fillId;
+            dist[sx * height + sy] = 0;
+        }
+
+        reached[sy * wordsPerRow + (sx >>> 6)] = 1L << (sx & 63);
+        int minY = sy;
+        int maxY = sy;
+        int step = 0;
+        while (step < maxSteps) {
+            int lo = Math.max(0, minY - 1);
+            int hi = Math.min(height - 1, maxY + 1);
+            if (lo < bandLo) {
+                loadFree(blocked, lo);
+                bandLo = lo;
+            }
+            if (hi > bandHi) {
+                loadFree(blocked, hi);
+                bandHi = hi;
+            }
+            boolean grew = false;
+            for (int y = lo; y <= hi; y++) {
+                int row = y * wordsPerRow;
+                for (int i = 0; i < wordsPerRow; i++) {
+                    long c = reached[row + i];
+                    long n = c | (c << 1) | (c >>> 1);
+                    if (i > 0) n |= reached[row + i - 1] >>> 63;
+                    if (i < wordsPerRow - 1) n |= reached[row + i + 1] << 63;
+                    if (y > 0) n |= reached[row - wordsPerRow + i];
+                    if (y < height - 1) n |= reached[row + wordsPerRow + i];
+                    n &= free[row + i];
+                    n |= c;
+                    long added = n & ~c;
+                    if (added != 0) {
+                        grew = true;
+                        if (recordDistances) {
+                            record(added, i, y, step + 1);
+                        }
+                    }
+                    next[row + i] = n;
+                }
+            }
+            long[] swap = reached;
+            reached = next;
+            next = swap;
+            if (!grew) {
+                break;
+            }
+            minY = lo;
+            maxY = hi;
+            step++;
+        }
+        return step;
+    }
+
+    /**
+     * Copy the unblocked cells of one row from the obstacle bitmap
+     */
+    private void loadFree(long[] blocked, int y) {
+        int row = y * wordsPerRow;
+        for (int i = 0; i < wordsPerRow; i++) {
+            free[row + i] = ~blocked[row + i];
+        }
+        free[row + wordsPerRow - 1] &= lastWordMask;
+    }
+
+    private void record(long added, int word, int y, int d) {
+        while (added != 0) {
+            int x = (word << 6) + Long.numberOfTrailingZeros(added);
+            stamp[x * height + y] = fillId;
+            dist[x * height + y] = d;
+            added &= added - 1;
+        }
+    }
+
+    /**
+     * @return true if (x, y) was reached by the last fill
+     */
+    public boolean isReached(int x, int y) {
+        return (reached[y * wordsPerRow + (x >>> 6)] & (1L << (x & 63))) != 0;
+    }
+
+    /**
+     * @return the distance of (x, y) from the source of the last fill, or
+     *         UNREACHED if it was not reached or distances were not recorded
+     */
+    public int getDistance(int x, int y) {
+        int cell = x * height + y;
+        if (!distancesRecorded || stamp[cell] != fillId) {
+            return UNREACHED;
+        }
+        return dist[cell];
+    }
+
+    /**
+     * @return number of cells reached by the last fill
+     */
+    public int countReached() {
+        int count = 0;
+        for (int i = bandLo * wordsPerRow; i < (bandHi + 1) * wordsPerRow; i++) {
+            count += Long.bitCount(reached[i]);
+        }
+        return count;
+    }
+
+    /**
+     * @return the reached set of the last fill, laid out like
+     *         TWAgentWorkingMemory.getBlockedBits(). Not a copy.
+     */
+    public long[] getReachedBits() {
+        return reached;
+    }
+
+    /**
+     * @return true if any cell of the rectangle [x1, x2] x [y1, y2] was
+     *         reached by the last fill, e.g. to tell whether a zone is cut off
+     */
+    public boolean isAnyReached(int x1, int y1, int x2, int y2) {
+        for (int y = Math.max(0, y1); y <= Math.min(height - 1, y2); y++) {
+            int row = y * wordsPerRow;
+            for (int i = Math.max(0, x1) >>> 6; i <= Math.min(width - 1, x2) >>> 6; i++) {
+                long mask = -1L;
+                if (i == x1 >>> 6 && x1 > 0) mask &= -1L << (x1 & 63);
+                if (i == x2 >>> 6) mask &= (x2 & 63) == 63 ? -1L : (1L << ((x2 & 63) + 1)) - 1;
+                if ((reached[row + i] & mask) != 0) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
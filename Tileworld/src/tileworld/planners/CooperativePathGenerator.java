@@ -0,0 +1,93 @@
+package tileworld.planners;
+
+import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentWorkingMemory;
+import tileworld.environment.TWEnvironment;
+
+/**
+ * CooperativePathGenerator
+ *
+ * Description: Windowed cooperative A* (Silver, 2005). Every agent otherwise
+ * plans against its own memory only, so agents walk into each other's cells
+ * and waste moves contending for them. This generator searches in space and
+ * time for the first few steps of a path, treating cells reserved by other
+ * agents in the shared ReservationTable as blocked at the time they are
+ * reserved, and allowing the agent to wait in place. The first window steps
+ * of the result are then reserved for this agent.
+ *
+ * Beyond the window other agents' plans are too uncertain to be worth
+ * respecting (plans are regenerated every step anyway), so the rest of the
+ * path is completed by an ordinary path generator from wherever the window
+ * ends.
+ *
+ * The space-time search itself is SpaceTimeSearch, whose state lives in a
+ * per-thread workspace; this class only decides which moves are blocked.
+ */
+public class CooperativePathGenerator implements TWPathGenerator {
+
+    private final TWEnvironment map;
+    private final TWAgent agent;
+    private final ReservationTable reservations;
+    /** Completes the path from the end of the window to the target */
+    private final TWPathGenerator completion;
+    /** Searches the first window steps in space-time */
+    private final SpaceTimeSearch search;
+
+    /** Inputs of the current search, read by the move filter */
+    private long[] blocked;
+    private int wordsPerRow;
+    private int now;
+
+    /**
+     * A move is blocked by an obstacle remembered in the target cell, or by
+     * a reservation of another agent at the time it is made
+     */
+    private final SpaceTimeSearch.MoveFilter filter = new SpaceTimeSearch.MoveFilter() {
+        @Override
+        public boolean isBlocked(int x, int y, int nx, int ny, int dt) {
+            if ((nx != x || ny != y) && TWAgentWorkingMemory.isBlocked(blocked, wordsPerRow, nx, ny)) {
+                return true;
+            }
+            return reservations.isMoveBlocked(x, y, nx, ny, now + dt, agent);
+        }
+    };
+
+    /**
+     * @param map          the map being searched
+     * @param agent        the agent the paths are for, and owner of its reservations
+     * @param reservations the table shared by all cooperating agents
+     * @param window       number of time steps planned cooperatively
+     * @param completion   generator for the remainder of the path
+     */
+    public CooperativePathGenerator(TWEnvironment map, TWAgent agent, ReservationTable reservations, int window,
+            TWPathGenerator completion) {
+        this.map = map;
+        this.agent = agent;
+        this.reservations = reservations;
+        this.completion = completion;
+        this.search = new SpaceTimeSearch(map.getxDimension(), map.getyDimension(), window);
+    }
+
+    @Override
+    public TWPath findPath(int sx, int sy, int tx, int ty) {
+        TWAgentWorkingMemory memory = agent.getMemory();
+        blocked = memory.getBlockedBits();
+        wordsPerRow = memory.getBlockedWordsPerRow();
+
+        if (TWAgentWorkingMemory.isBlocked(blocked, wordsPerRow, tx, ty)) {
+            return null;
+        }
+
+        now = (int) map.schedule.getTime();
+        if (search.search(sx, sy, tx, ty, filter) < 0) {
+            return null;
+        }
+        TWPath path = search.toPath(tx, ty, completion);
+        if (path == null) {
+            return null;
+        }
+
+        reservations.reserve(agent, search.getPathX(), search.getPathY(), search.getLength(), now);
+        return path;
+    }
+}
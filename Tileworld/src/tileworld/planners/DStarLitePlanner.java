@@ -0,0 +1,380 @@
+package tileworld.planners;
+
+import java.util.ArrayList;
+
+import sim.util.Int2D;
+import sim.util.IntBag;
+import tileworld.agent.BlockedCellListener;
+import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentWorkingMemory;
+import tileworld.environment.TWDirection;
+
+/**
+ * DStarLitePlanner
+ *
+ * Description: An incremental planner based on D* Lite (Koenig and Likhachev,
+ * 2002). DefaultTWPlanner runs a fresh A* every time it is asked for a plan,
+ * even when neither the goal nor the known obstacles have changed. This planner
+ * searches backwards from the goal and keeps its search tree between calls.
+ * When the agent moves, the tree is reused as is; when cells change their
+ * blocked status in memory (reported through BlockedCellListener), only the
+ * affected cells are repaired. Replanning cost therefore scales with the size
+ * of the change rather than the size of the map. A new goal starts a new
+ * search, which is reset lazily per cell like AstarPathGenerator.
+ *
+ * voidPlan() only drops the current path, not the search tree, so callers
+ * that void and regenerate every step still benefit.
+ */
+public class DStarLitePlanner implements TWPlanner, BlockedCellListener {
+
+    /** Cost of an edge into a blocked cell, or of an unreached cell */
+    private static final int INF = Integer.MAX_VALUE / 2;
+
+    private ArrayList<Int2D> goals;
+    private TWPath plan;
+    private TWAgent agent;
+
+    private final int width;
+    private final int height;
+
+    /** Cost-to-goal estimate of each cell */
+    private final int[] g;
+    /** One step lookahead cost-to-goal of each cell */
+    private final int[] rhs;
+    /** Search generation that last touched each cell */
+    private final int[] stamp;
+    private int searchId;
+
+    /** Open list, an indexed binary heap of cell indices */
+    private final int[] heap;
+    /** Position of each cell in the heap, -1 if not queued */
+    private final int[] heapPos;
+    /** Key of each queued cell, k1 in the high word and k2 in the low word */
+    private final long[] key;
+    private int heapSize;
+
+    /** Goal of the current search tree, -1 if there is none */
+    private int searchGoal = -1;
+    /** Start the keys were last computed against */
+    private int lastStart;
+    /** Key modifier, accumulates start movement so old keys stay valid */
+    private int km;
+
+    /** Cells whose blocked status changed since the last plan */
+    private final IntBag changedCells = new IntBag();
+
+    public DStarLitePlanner(TWAgent agent) {
+        this.agent = agent;
+        this.plan = null;
+        this.goals = new ArrayList<Int2D>(0);
+
+        this.width = agent.getEnvironment().getxDimension();
+        this.height = agent.getEnvironment().getyDimension();
+        int n = width * height;
+        this.g = new int[n];
+        this.rhs = new int[n];
+        this.stamp = new int[n];
+        this.heap = new int[n];
+        this.heapPos = new int[n];
+        this.key = new long[n];
+
+        agent.getMemory().addBlockedCellListener(this);
+    }
+
+    @Override
+    public void blockedCellChanged(int x, int y, boolean blocked) {
+        if (searchGoal >= 0) {
+            changedCells.add(x * height + y);
+        }
+    }
+
+    @Override
+    public TWPath generatePlan() {
+        Int2D goal = goals.get(0);
+        int start = agent.getX() * height + agent.getY();
+        int target = goal.x * height + goal.y;
+
+        if (isBlocked(target) || start == target) {
+            this.plan = null;
+            return null;
+        }
+
+        if (target != searchGoal) {
+            initialise(start, target);
+        } else if (changedCells.size() > 0) {
+            km += heuristic(lastStart, start);
+            lastStart = start;
+            for (int i = 0; i < changedCells.size(); i++) {
+                int cell = changedCells.get(i);
+                // entering this cell got cheaper or dearer, so every
+                // neighbour's lookahead may change
+                int cx = cell / height;
+                int cy = cell % height;
+                if (cx > 0) updateVertex(cell - height, start);
+                if (cx < width - 1) updateVertex(cell + height, start);
+                if (cy > 0) updateVertex(cell - 1, start);
+                if (cy < height - 1) updateVertex(cell + 1, start);
+            }
+        }
+        changedCells.clear();
+
+        computeShortestPath(start);
+        this.plan = extractPath(start, target);
+        return this.plan;
+    }
+
+    @Override
+    public boolean hasPlan() {
+        return (plan != null) && plan.hasNext();
+    }
+
+    @Override
+    public void voidPlan() {
+        plan = null;
+    }
+
+    @Override
+    public ArrayList<Int2D> getGoals() {
+        return goals;
+    }
+
+    @Override
+    public Int2D getCurrentGoal() {
+        if (goals.isEmpty())
+            return null;
+        else
+            return goals.get(0);
+    }
+
+    @Override
+    public TWDirection execute() {
+        return plan.popNextDirection();
+    }
+
+    /**
+     * Start a new search tree rooted at the goal
+     */
+    private void initialise(int start, int target) {
+        searchId++;
+        heapSize = 0;
+        km = 0;
+        lastStart = start;
+        searchGoal = target;
+        touch(target);
+        rhs[target] = 0;
+        insert(target, calculateKey(target, start));
+    }
+
+    private void computeShortestPath(int start) {
+        touch(start);
+        while (heapSize > 0
+                && (key[heap[0]] < calculateKey(start, start) || rhs[start] != g[start])) {
+            int u = heap[0];
+            long oldKey = key[u];
+            long newKey = calculateKey(u, start);
+            if (oldKey < newKey) {
+                update(u, newKey);
+            } else if (g[u] > rhs[u]) {
+                g[u] = rhs[u];
+                remove(u);
+                updateNeighbours(u, start);
+            } else {
+                g[u] = INF;
+                updateVertex(u, start);
+                updateNeighbours(u, start);
+            }
+        }
+    }
+
+    private void updateNeighbours(int u, int start) {
+        int ux = u / height;
+        int uy = u % height;
+        if (ux > 0) updateVertex(u - height, start);
+        if (ux < width - 1) updateVertex(u + height, start);
+        if (uy > 0) updateVertex(u - 1, start);
+        if (uy < height - 1) updateVertex(u + 1, start);
+    }
+
+    private void updateVertex(int u, int start) {
+        touch(u);
+        if (u != searchGoal) {
+            rhs[u] = bestSuccessorCost(u);
+        }
+        if (heapPos[u] >= 0) {
+            if (g[u] != rhs[u]) {
+                update(u, calculateKey(u, start));
+            } else {
+                remove(u);
+            }
+        } else if (g[u] != rhs[u]) {
+            insert(u, calculateKey(u, start));
+        }
+    }
+
+    /**
+     * @return min over neighbours s of c(u, s) + g(s)
+     */
+    private int bestSuccessorCost(int u) {
+        int ux = u / height;
+        int uy = u % height;
+        int best = INF;
+        if (ux > 0) best = Math.min(best, edgeCost(u - height));
+        if (ux < width - 1) best = Math.min(best, edgeCost(u + height));
+        if (uy > 0) best = Math.min(best, edgeCost(u - 1));
+        if (uy < height - 1) best = Math.min(best, edgeCost(u + 1));
+        return best;
+    }
+
+    /**
+     * Cost of stepping into cell s plus its cost-to-goal
+     */
+    private int edgeCost(int s) {
+        touch(s);
+        if (g[s] >= INF || isBlocked(s)) {
+            return INF;
+        }
+        return g[s] + 1;
+    }
+
+    /**
+     * Follow the cheapest successors from the start down to the goal
+     */
+    private TWPath extractPath(int start, int target) {
+        if (g[start] >= INF) {
+            return null;
+        }
+        TWPath path = new TWPath(target / height, target % height);
+        int current = start;
+        int steps = 0;
+        while (current != target && steps++ < g.length) {
+            int cx = current / height;
+            int cy = current % height;
+            int next = -1;
+            int best = INF;
+            if (cx > 0 && edgeCost(current - height) < best) { next = current - height; best = edgeCost(next); }
+            if (cx < width - 1 && edgeCost(current + height) < best) { next = current + height; best = edgeCost(next); }
+            if (cy > 0 && edgeCost(current - 1) < best) { next = current - 1; best = edgeCost(next); }
+            if (cy < height - 1 && edgeCost(current + 1) < best) { next = current + 1; best = edgeCost(next); }
+            if (next < 0) {
+                return null;
+            }
+            path.appendStep(cx, cy, getDirection(current, next));
+            current = next;
+        }
+        return current == target ? path : null;
+    }
+
+    private TWDirection getDirection(int from, int to) {
+        if (to == from + height) {
+            return TWDirection.E;
+        } else if (to == from - height) {
+            return TWDirection.W;
+        } else if (to == from + 1) {
+            return TWDirection.S;
+        } else {
+            return TWDirection.N;
+        }
+    }
+
+    private boolean isBlocked(int cell) {
+        TWAgentWorkingMemory memory = agent.getMemory();
+        return TWAgentWorkingMemory.isBlocked(memory.getBlockedBits(), memory.getBlockedWordsPerRow(),
+                cell / height, cell % height);
+    }
+
+    private int heuristic(int a, int b) {
+        return Math.abs(a / height - b / height) + Math.abs(a % height - b % height);
+    }
+
+    private long calculateKey(int u, int start) {
+        touch(u);
+        int m = Math.min(g[u], rhs[u]);
+        if (m >= INF) {
+            return ((long) INF << 32) | INF;
+        }
+        return ((long) (m + heuristic(start, u) + km) << 32) | m;
+    }
+
+    /**
+     * Reset a cell the first time the current search generation reaches it
+     */
+    private void touch(int u) {
+        if (stamp[u] != searchId) {
+            stamp[u] = searchId;
+            g[u] = INF;
+            rhs[u] = INF;
+            heapPos[u] = -1;
+        }
+    }
+
+    // ----------------------------------------------------------------
+    // indexed binary heap on key[]
+
+    private void insert(int u, long k) {
+        key[u] = k;
+        heap[heapSize] = u;
+        heapPos[u] = heapSize;
+        heapSize++;
+        siftUp(heapPos[u]);
+    }
+
+    private void update(int u, long k) {
+        long old = key[u];
+        key[u] = k;
+        if (k < old) {
+            siftUp(heapPos[u]);
+        } else {
+            siftDown(heapPos[u]);
+        }
+    }
+
+    private void remove(int u) {
+        int i = heapPos[u];
+        heapPos[u] = -1;
+        heapSize--;
+        if (i == heapSize) {
+            return;
+        }
+        int last = heap[heapSize];
+        heap[i] = last;
+        heapPos[last] = i;
+        siftDown(i);
+        siftUp(heapPos[last]);
+    }
+
+    private void siftUp(int i) {
+        int u = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            int p = heap[parent];
+            if (key[u] >= key[p]) {
+                break;
+            }
+            heap[i] = p;
+            heapPos[p] = i;
+            i = parent;
+        }
+        heap[i] = u;
+        heapPos[u] = i;
+    }
+
+    private void siftDown(int i) {
+        int u = heap[i];
+        int half = heapSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            int right = child + 1;
+            if (right < heapSize && key[heap[right]] < key[heap[child]]) {
+                child = right;
+            }
+            if (key[u] <= key[heap[child]]) {
+                break;
+            }
+            heap[i] = heap[child];
+            heapPos[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = u;
+        heapPos[u] = i;
+    }
+}
@@ -6,8 +6,13 @@ package tileworld.planners;
 
 import java.security.Policy.Parameters;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import sim.util.Int2D;
+import sim.util.IntBag;
+import tileworld.agent.BlockedCellListener;
 import tileworld.agent.TWAgent;
 import tileworld.environment.TWDirection;
 
@@ -51,32 +56,238 @@ import tileworld.environment.TWDirection;
  *         of the behaviors
  *
  */
-public class DefaultTWPlanner implements TWPlanner {
+public class DefaultTWPlanner implements TWPlanner, BlockedCellListener {
 
     private ArrayList<Int2D> goals;
     private TWPath plan;
     private TWAgent agent;
-    private AstarPathGenerator pathGenerator;
+    private TWPathGenerator pathGenerator;
 
     private int maxSearchx=50;
     private int maxSearchy=50;
 
+    /**
+     * Maximum number of (start, goal) paths kept in the cache. Off by
+     * default: an agent rarely asks for the same start and goal twice, and
+     * plan retention already serves the common case of replanning towards
+     * the same goal, so the cache mostly costs a copy per search.
+     */
+    private int pathCacheSize=0;
+
+    /**
+     * Recently generated paths, least recently used first. An entry stays
+     * valid until a cell on its path (or its goal) becomes blocked in
+     * memory, see blockedCellChanged; obstacles elsewhere on the map do not
+     * affect it.
+     */
+    private LinkedHashMap<Long, CachedPath> pathCache;
+
+    private int cacheHits;
+    private int cacheMisses;
+
+    /**
+     * Reused for plans served from the cache
+     */
+    private TWPath planBuffer = new TWPath(0, 0, 64);
+
+    /**
+     * The plan dropped by the last voidPlan() and the goal it leads to. If
+     * the next plan is for the same goal and the agent is where this plan
+     * expects, it is kept instead of searching again.
+     */
+    private TWPath retainedPlan;
+    private Int2D retainedGoal;
+    /** The goal the current plan leads to */
+    private Int2D planGoal;
+    /**
+     * Cells that became blocked in memory since the current or retained plan
+     * was made, packed x << 16 | y
+     */
+    private IntBag newlyBlocked = new IntBag();
+    private boolean listening;
+    private boolean planRetention = true;
+
+    private int planReuses;
+
     public DefaultTWPlanner(TWAgent agent) {
+        this(agent, false);
+    }
+
+    /**
+     * @param agent         the agent this planner plans for
+     * @param jumpPointSearch true to search with JumpPointPathGenerator
+     *                        instead of the default AstarPathGenerator
+     */
+    public DefaultTWPlanner(TWAgent agent, boolean jumpPointSearch) {
+        this(agent, null);
+        if (jumpPointSearch) {
+            this.pathGenerator = new JumpPointPathGenerator(agent.getEnvironment(), agent,
+                    maxSearchx + maxSearchy);
+        } else {
+            this.pathGenerator = new AstarPathGenerator(agent.getEnvironment(), agent,
+                    maxSearchx + maxSearchy);
+        }
+    }
+
+    /**
+     * @param agent         the agent this planner plans for
+     * @param pathGenerator the path generator used to build plans, e.g. a
+     *                      HierarchicalPathGenerator for large maps
+     */
+    public DefaultTWPlanner(TWAgent agent, TWPathGenerator pathGenerator) {
         this.agent = agent;
         this.plan = null;
+        this.pathGenerator = pathGenerator;
         this.goals = new ArrayList<Int2D>(0);
-        this.pathGenerator = new AstarPathGenerator(agent.getEnvironment(), agent,
-                maxSearchx + maxSearchy);
+        this.pathCache = new LinkedHashMap<Long, CachedPath>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, CachedPath> eldest) {
+                return size() > pathCacheSize;
+            }
+        };
     }
 
     // TSP resource-bounded time-limited scenario.
     // Rank nearby tiles and holes by both distance and expected time left.
     @Override
     public TWPath generatePlan() {
-        this.plan = pathGenerator.findPath(agent.getX(), agent.getY(), goals.get(0).x, goals.get(0).y);
+        int sx = agent.getX();
+        int sy = agent.getY();
+        int tx = goals.get(0).x;
+        int ty = goals.get(0).y;
+        if (!listening) {
+            agent.getMemory().addBlockedCellListener(this);
+            listening = true;
+        }
+        planGoal = goals.get(0);
+
+        if (isRetainedPlanValid(sx, sy)) {
+            planReuses++;
+            this.plan = retainedPlan;
+            retainedPlan = null;
+            newlyBlocked.clear();
+            return this.plan;
+        }
+        retainedPlan = null;
+        newlyBlocked.clear();
+
+        if (pathCacheSize <= 0) {
+            this.plan = pathGenerator.findPath(sx, sy, tx, ty);
+            return this.plan;
+        }
+
+        Long key = ((long) sx << 48) | ((long) sy << 32) | ((long) tx << 16) | ty;
+
+        CachedPath cached = pathCache.get(key);
+        if (cached != null) {
+            cacheHits++;
+            if (cached.path == null) {
+                this.plan = null;
+            } else {
+                // cached paths are never handed out, plans are consumed as they run
+                planBuffer.copyFrom(cached.path);
+                this.plan = planBuffer;
+            }
+            return this.plan;
+        }
+
+        cacheMisses++;
+        this.plan = pathGenerator.findPath(sx, sy, tx, ty);
+        // unreachable goals are cached too, they are the most expensive searches
+        pathCache.put(key, new CachedPath(this.plan, tx, ty));
         return this.plan;
     }
 
+    /**
+     * Set the number of cached paths, 0 disables the cache. Generators whose
+     * paths depend on more than the obstacles in memory, such as
+     * CooperativePathGenerator, must not be cached.
+     *
+     * @param pathCacheSize maximum number of cached paths
+     */
+    public void setPathCacheSize(int pathCacheSize) {
+        this.pathCacheSize = pathCacheSize;
+        pathCache.clear();
+    }
+
+    /**
+     * A retained plan is still good if it leads to the current goal, starts
+     * where the agent stands and none of its remaining cells (nor the goal)
+     * has become blocked since it was made. Only the few cells reported
+     * through blockedCellChanged are checked, never the whole path.
+     */
+    private boolean isRetainedPlanValid(int sx, int sy) {
+        if (!planRetention || retainedPlan == null || !retainedPlan.hasNext()
+                || !goals.get(0).equals(retainedGoal)) {
+            return false;
+        }
+        if (retainedPlan.getStepX(0) != sx || retainedPlan.getStepY(0) != sy) {
+            return false;
+        }
+        for (int i = 0; i < newlyBlocked.size(); i++) {
+            int x = newlyBlocked.get(i) >>> 16;
+            int y = newlyBlocked.get(i) & 0xFFFF;
+            if ((x == retainedGoal.x && y == retainedGoal.y) || retainedPlan.contains(x, y)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void blockedCellChanged(int x, int y, boolean blocked) {
+        // cells becoming free never invalidate a plan
+        if (blocked && (plan != null || retainedPlan != null)) {
+            newlyBlocked.add((x << 16) | y);
+        }
+        if (pathCache.isEmpty()) {
+            return;
+        }
+        // drop only the cached paths this cell affects: those running
+        // through it when it becomes blocked, and "unreachable" results,
+        // which a newly free cell may connect
+        Iterator<CachedPath> entries = pathCache.values().iterator();
+        while (entries.hasNext()) {
+            CachedPath cached = entries.next();
+            if (cached.path == null ? !blocked
+                    : blocked && ((x == cached.tx && y == cached.ty) || cached.path.contains(x, y))) {
+                entries.remove();
+            }
+        }
+    }
+
+    /**
+     * Turn keeping still valid plans across voidPlan() on or off. Like the
+     * path cache, this must be off for generators whose paths depend on
+     * more than the obstacles in memory.
+     *
+     * @param planRetention true to keep still valid plans
+     */
+    public void setPlanRetention(boolean planRetention) {
+        this.planRetention = planRetention;
+    }
+
+    /**
+     * @return number of plans kept from the previous step instead of searching
+     */
+    public int getPlanReuses() {
+        return planReuses;
+    }
+
+    /**
+     * @return number of plans served from the path cache
+     */
+    public int getCacheHits() {
+        return cacheHits;
+    }
+
+    /**
+     * @return number of plans that needed a new search
+     */
+    public int getCacheMisses() {
+        return cacheMisses;
+    }
+
     @Override
     public boolean hasPlan() {
         return (plan != null) && plan.hasNext() ? true : false;
@@ -84,10 +295,16 @@ public class DefaultTWPlanner implements TWPlanner {
 
     @Override
     public void voidPlan() {
+        // keep the remainder in case the next plan is for the same goal
+        if (plan != null) {
+            retainedPlan = plan;
+            retainedGoal = planGoal;
+        }
         plan = null;
         // System.out.println(agent.getName() + " voided current plan.");
     }
 
+    @Override
     public ArrayList<Int2D> getGoals() {
         return goals;
     }
@@ -102,7 +319,24 @@ public class DefaultTWPlanner implements TWPlanner {
 
     @Override
     public TWDirection execute() {
-        return plan.popNext().getDirection();
+        return plan.popNextDirection();
+    }
+
+    /**
+     * A path held in the cache. Plans are consumed as they are executed, and
+     * path generators may refill the path they returned, so the cache keeps
+     * its own copy of the steps.
+     */
+    private static class CachedPath {
+        private final TWPath path;
+        private final int tx;
+        private final int ty;
+
+        CachedPath(TWPath path, int tx, int ty) {
+            this.path = path == null ? null : path.copy();
+            this.tx = tx;
+            this.ty = ty;
+        }
     }
 
 }
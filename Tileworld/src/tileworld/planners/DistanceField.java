@@ -0,0 +1,259 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+
+import sim.util.IntBag;
+import tileworld.agent.BlockedCellListener;
+import tileworld.agent.TWAgentWorkingMemory;
+import tileworld.environment.TWDirection;
+
+/**
+ * DistanceField
+ *
+ * Description: True (obstacle aware) 4-connected path distance from every
+ * cell to a single root cell, typically the fuel station. The field is built
+ * once with a BFS and then kept up to date incrementally as obstacles appear
+ * and expire in the agent's memory:
+ *
+ * - a cell becoming free pulls its distance from its neighbours and pushes
+ * any improvement outwards with a BFS.
+ *
+ * - a cell becoming blocked invalidates, level by level, every cell whose
+ * shortest path relied on it, then re-seeds those cells from the still valid
+ * boundary.
+ *
+ * Both repairs only touch the region actually affected. Asking how far the
+ * root is, or which way to step towards it, is then an O(1) lookup.
+ */
+public class DistanceField implements BlockedCellListener {
+
+    /** Distance of cells that cannot reach the root */
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final TWAgentWorkingMemory memory;
+    private final int width;
+    private final int height;
+    private final int root;
+
+    /** Distance to the root of each cell, indexed x * height + y */
+    private final int[] dist;
+
+    /** Scratch FIFO queue shared by all repairs */
+    private final int[] queue;
+    /** Cells invalidated by the last raise, and their seeds for re-lowering */
+    private final IntBag invalidated = new IntBag();
+    private final IntBag seeds = new IntBag();
+
+    /**
+     * Build the field over the memory's current obstacles and start listening
+     * for changes.
+     *
+     * @param memory the memory supplying blocked cells
+     * @param width  map width
+     * @param height map height
+     * @param rootX  x-coordinate of the root
+     * @param rootY  y-coordinate of the root
+     */
+    public DistanceField(TWAgentWorkingMemory memory, int width, int height, int rootX, int rootY) {
+        this.memory = memory;
+        this.width = width;
+        this.height = height;
+        this.root = rootX * height + rootY;
+        this.dist = new int[width * height];
+        this.queue = new int[width * height];
+
+        Arrays.fill(dist, UNREACHABLE);
+        dist[root] = 0;
+        lower(root);
+
+        memory.addBlockedCellListener(this);
+    }
+
+    /**
+     * @return path distance from (x, y) to the root, or UNREACHABLE
+     */
+    public int getDistance(int x, int y) {
+        return dist[x * height + y];
+    }
+
+    /**
+     * @return the direction of a step from (x, y) along a shortest path to
+     *         the root, or null if (x, y) is the root or cannot reach it
+     */
+    public TWDirection getDirectionToRoot(int x, int y) {
+        int d = dist[x * height + y];
+        if (d == 0 || d == UNREACHABLE) {
+            return null;
+        }
+        if (x < width - 1 && dist[(x + 1) * height + y] == d - 1) return TWDirection.E;
+        if (x > 0 && dist[(x - 1) * height + y] == d - 1) return TWDirection.W;
+        if (y < height - 1 && dist[x * height + y + 1] == d - 1) return TWDirection.S;
+        if (y > 0 && dist[x * height + y - 1] == d - 1) return TWDirection.N;
+        return null;
+    }
+
+    @Override
+    public void blockedCellChanged(int x, int y, boolean blocked) {
+        int cell = x * height + y;
+        if (cell == root) {
+            return;
+        }
+        if (blocked) {
+            raise(cell);
+        } else {
+            int best = minNeighbour(cell);
+            if (best != UNREACHABLE) {
+                dist[cell] = best + 1;
+                lower(cell);
+            }
+        }
+    }
+
+    /**
+     * BFS outwards from a cell whose distance has just dropped
+     */
+    private void lower(int start) {
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = start;
+        while (head < tail) {
+            int u = queue[head++];
+            int next = dist[u] + 1;
+            int ux = u / height;
+            int uy = u % height;
+            if (ux > 0) tail = relax(u - height, next, tail);
+            if (ux < width - 1) tail = relax(u + height, next, tail);
+            if (uy > 0) tail = relax(u - 1, next, tail);
+            if (uy < height - 1) tail = relax(u + 1, next, tail);
+        }
+    }
+
+    private int relax(int v, int d, int tail) {
+        if (d < dist[v] && !isBlocked(v)) {
+            dist[v] = d;
+            queue[tail++] = v;
+        }
+        return tail;
+    }
+
+    /**
+     * A cell has become blocked. Invalidate it and every cell that depended
+     * on it, then recompute those cells from the valid cells around them.
+     */
+    private void raise(int blockedCell) {
+        if (dist[blockedCell] == UNREACHABLE) {
+            return;
+        }
+        invalidated.clear();
+        // walk outwards one distance level at a time, so every cell of level
+        // d has been invalidated before any cell of level d + 1 is checked for
+        // an alternative parent
+        int level = dist[blockedCell];
+        dist[blockedCell] = UNREACHABLE;
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = blockedCell;
+        while (head < tail) {
+            int levelEnd = tail;
+            while (head < levelEnd) {
+                int u = queue[head++];
+                int ux = u / height;
+                int uy = u % height;
+                if (ux > 0) tail = invalidate(u - height, level + 1, tail);
+                if (ux < width - 1) tail = invalidate(u + height, level + 1, tail);
+                if (uy > 0) tail = invalidate(u - 1, level + 1, tail);
+                if (uy < height - 1) tail = invalidate(u + 1, level + 1, tail);
+            }
+            level++;
+        }
+
+        // re-seed every invalidated cell from its valid neighbours, then let
+        // a BFS fill in the rest in order of distance
+        seeds.clear();
+        for (int i = 0; i < invalidated.size(); i++) {
+            int v = invalidated.get(i);
+            int best = minNeighbour(v);
+            if (best != UNREACHABLE) {
+                dist[v] = best + 1;
+                seeds.add(v);
+            }
+        }
+        lowerFromSeeds();
+    }
+
+    private int invalidate(int v, int d, int tail) {
+        if (dist[v] != d) {
+            return tail;
+        }
+        // still supported by another neighbour one step closer to the root
+        int vx = v / height;
+        int vy = v % height;
+        if ((vx > 0 && dist[v - height] == d - 1)
+                || (vx < width - 1 && dist[v + height] == d - 1)
+                || (vy > 0 && dist[v - 1] == d - 1)
+                || (vy < height - 1 && dist[v + 1] == d - 1)) {
+            return tail;
+        }
+        dist[v] = UNREACHABLE;
+        invalidated.add(v);
+        queue[tail++] = v;
+        return tail;
+    }
+
+    /**
+     * Multi-source BFS from the seeds. Seeds have different starting
+     * distances, so they are sorted and merged with the FIFO queue, always
+     * expanding whichever head is closer.
+     */
+    private void lowerFromSeeds() {
+        int n = seeds.size();
+        if (n == 0) {
+            return;
+        }
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) {
+            int v = seeds.get(i);
+            sorted[i] = ((long) dist[v] << 32) | v;
+        }
+        Arrays.sort(sorted);
+
+        int next = 0;
+        int head = 0;
+        int tail = 0;
+        while (next < n || head < tail) {
+            int u;
+            if (head < tail && (next >= n || dist[queue[head]] <= (int) (sorted[next] >>> 32))) {
+                u = queue[head++];
+            } else {
+                u = (int) sorted[next++];
+                // superseded by a shorter route found through another seed
+                if (dist[u] < (int) (sorted[next - 1] >>> 32)) {
+                    continue;
+                }
+            }
+            int d = dist[u] + 1;
+            int ux = u / height;
+            int uy = u % height;
+            if (ux > 0) tail = relax(u - height, d, tail);
+            if (ux < width - 1) tail = relax(u + height, d, tail);
+            if (uy > 0) tail = relax(u - 1, d, tail);
+            if (uy < height - 1) tail = relax(u + 1, d, tail);
+        }
+    }
+
+    private int minNeighbour(int v) {
+        int vx = v / height;
+        int vy = v % height;
+        int best = UNREACHABLE;
+        if (vx > 0) best = Math.min(best, dist[v - height]);
+        if (vx < width - 1) best = Math.min(best, dist[v + height]);
+        if (vy > 0) best = Math.min(best, dist[v - 1]);
+        if (vy < height - 1) best = Math.min(best, dist[v + 1]);
+        return best;
+    }
+
+    private boolean isBlocked(int cell) {
+        return TWAgentWorkingMemory.isBlocked(memory.getBlockedBits(), memory.getBlockedWordsPerRow(),
+                cell / height, cell % height);
+    }
+}
@@ -0,0 +1,442 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+
+import tileworld.Parameters;
+import tileworld.agent.BlockedCellListener;
+import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentWorkingMemory;
+import tileworld.environment.TWEnvironment;
+
+/**
+ * HierarchicalPathGenerator
+ *
+ * Description: An HPA* (Botea, Mueller and Schaeffer, 2004) path generator for
+ * large maps. The map is cut into square clusters whose side is the anchor
+ * spacing used by TWAgentHybrid.assignZone (2 * sensor range + 1). Along every
+ * border between two clusters, each run of cells that are free on both sides
+ * becomes an entrance: one transition in the middle of a short run, two at
+ * the ends of a long one. Transition cells are the nodes of an abstract graph
+ * whose edges are the transitions themselves (cost 1) and the shortest
+ * in-cluster distances between the transition cells of each cluster.
+ *
+ * A query connects the start and goal to the transition cells of their own
+ * clusters, searches the abstract graph, and refines only the first leg of
+ * the abstract path into single steps. As the agent replans every step, the
+ * rest of the route is refined when it is reached. Paths are therefore close
+ * to, but not always exactly, the shortest.
+ *
+ * Obstacle changes in memory mark the affected borders and clusters dirty;
+ * they are rebuilt lazily on the next query.
+ */
+public class HierarchicalPathGenerator implements TWPathGenerator, BlockedCellListener {
+
+    /** Distance of unreachable cells */
+    private static final int INF = Integer.MAX_VALUE / 2;
+    /** Entrances at least this wide get a transition at each end */
+    private static final int WIDE_ENTRANCE = 6;
+
+    private TWEnvironment map;
+    private TWAgent agent;
+    /** The maximum abstract path cost we're willing to accept */
+    private int maxSearchDistance;
+
+    private final int width;
+    private final int height;
+    private final int clusterSize;
+    private final int clustersX;
+    private final int clustersY;
+
+    /** transitionEast[c] is true if (x, y) -> (x + 1, y) is a transition */
+    private final boolean[] transitionEast;
+    /** transitionSouth[c] is true if (x, y) -> (x, y + 1) is a transition */
+    private final boolean[] transitionSouth;
+
+    /** Transition cells of each cluster */
+    private final int[][] clusterNodes;
+    /** In-cluster distances between the transition cells of each cluster */
+    private final int[][][] clusterDistances;
+
+    /** Borders between cluster (cx, cy) and (cx + 1, cy) needing a rebuild */
+    private final boolean[] dirtyEastBorder;
+    /** Borders between cluster (cx, cy) and (cx, cy + 1) needing a rebuild */
+    private final boolean[] dirtySouthBorder;
+    /** Clusters whose intra-cluster distances need a rebuild */
+    private final boolean[] dirtyCluster;
+    private boolean dirty;
+
+    /** Scratch state for in-cluster BFS, reset by generation stamp */
+    private final int[] bfsDist;
+    private final int[] bfsParent;
+    private final int[] bfsStamp;
+    private final int[] bfsQueue;
+    private int bfsId;
+
+    /** Scratch state for the abstract search, reset by generation stamp */
+    private final int[] absCost;
+    private final int[] absParent;
+    private final int[] absStamp;
+    /** Distance from each transition cell of the goal cluster to the goal */
+    private final int[] goalDist;
+    private int searchId;
+    /** Open list of the abstract search, packed as (f << 32) | cell */
+    private final LongMinHeap open = new LongMinHeap();
+
+    public HierarchicalPathGenerator(TWEnvironment map, TWAgent agent, int maxSearchDistance) {
+        this.map = map;
+        this.agent = agent;
+        this.maxSearchDistance = maxSearchDistance;
+
+        this.width = map.getxDimension();
+        this.height = map.getyDimension();
+        this.clusterSize = Parameters.defaultSensorRange * 2 + 1;
+        this.clustersX = (width + clusterSize - 1) / clusterSize;
+        this.clustersY = (height + clusterSize - 1) / clusterSize;
+
+        int n = width * height;
+        this.transitionEast = new boolean[n];
+        this.transitionSouth = new boolean[n];
+        this.clusterNodes = new int[clustersX * clustersY][];
+        this.clusterDistances = new int[clustersX * clustersY][][];
+        this.dirtyEastBorder = new boolean[clustersX * clustersY];
+        this.dirtySouthBorder = new boolean[clustersX * clustersY];
+        this.dirtyCluster = new boolean[clustersX * clustersY];
+
+        this.bfsDist = new int[n];
+        this.bfsParent = new int[n];
+        this.bfsStamp = new int[n];
+        this.bfsQueue = new int[clusterSize * clusterSize];
+        this.absCost = new int[n];
+        this.absParent = new int[n];
+        this.absStamp = new int[n];
+        this.goalDist = new int[n];
+
+        Arrays.fill(dirtyEastBorder, true);
+        Arrays.fill(dirtySouthBorder, true);
+        Arrays.fill(dirtyCluster, true);
+        dirty = true;
+
+        agent.getMemory().addBlockedCellListener(this);
+    }
+
+    @Override
+    public void blockedCellChanged(int x, int y, boolean blocked) {
+        int cx = x / clusterSize;
+        int cy = y / clusterSize;
+        int cluster = cx * clustersY + cy;
+        dirtyCluster[cluster] = true;
+        // a cell on a cluster edge also changes the entrances of that border
+        // and therefore the transition cells of the cluster on the other side
+        if (x % clusterSize == clusterSize - 1 && cx < clustersX - 1) {
+            dirtyEastBorder[cluster] = true;
+            dirtyCluster[cluster + clustersY] = true;
+        }
+        if (x % clusterSize == 0 && cx > 0) {
+            dirtyEastBorder[cluster - clustersY] = true;
+            dirtyCluster[cluster - clustersY] = true;
+        }
+        if (y % clusterSize == clusterSize - 1 && cy < clustersY - 1) {
+            dirtySouthBorder[cluster] = true;
+            dirtyCluster[cluster + 1] = true;
+        }
+        if (y % clusterSize == 0 && cy > 0) {
+            dirtySouthBorder[cluster - 1] = true;
+            dirtyCluster[cluster - 1] = true;
+        }
+        dirty = true;
+    }
+
+    public TWPath findPath(int sx, int sy, int tx, int ty) {
+        if (isBlocked(tx, ty) || (sx == tx && sy == ty)) {
+            return null;
+        }
+        if (dirty) {
+            rebuild();
+        }
+
+        int start = sx * height + sy;
+        int goal = tx * height + ty;
+        int startCluster = clusterOf(sx, sy);
+        int goalCluster = clusterOf(tx, ty);
+
+        // start and goal share a cluster and are connected inside it
+        if (startCluster == goalCluster) {
+            clusterBfs(startCluster, start);
+            if (bfsStamp[goal] == bfsId && bfsDist[goal] < INF) {
+                return tracePath(start, goal);
+            }
+        }
+
+        // distances from the goal to the transition cells of its cluster
+        int[] goalNodes = clusterNodes[goalCluster];
+        clusterBfs(goalCluster, goal);
+        for (int i = 0; i < goalNodes.length; i++) {
+            int node = goalNodes[i];
+            goalDist[node] = bfsStamp[node] == bfsId ? bfsDist[node] : INF;
+        }
+
+        // seed the abstract search with the start's own cluster
+        searchId++;
+        open.clear();
+        int[] startNodes = clusterNodes[startCluster];
+        clusterBfs(startCluster, start);
+        for (int i = 0; i < startNodes.length; i++) {
+            int node = startNodes[i];
+            if (bfsStamp[node] == bfsId && bfsDist[node] < INF) {
+                relax(node, bfsDist[node], start, tx, ty);
+            }
+        }
+
+        int bestEnd = -1;
+        int bestCost = INF;
+        while (!open.isEmpty()) {
+            long entry = open.pop();
+            int u = (int) entry;
+            int f = (int) (entry >>> 32);
+            int g = absCost[u];
+            if (f >= bestCost) {
+                break;
+            }
+            if (f > g + heuristic(u, tx, ty)) {
+                // stale queue entry
+                continue;
+            }
+            int ux = u / height;
+            int uy = u % height;
+            int cluster = clusterOf(ux, uy);
+            if (cluster == goalCluster && goalDist[u] < INF && g + goalDist[u] < bestCost) {
+                bestCost = g + goalDist[u];
+                bestEnd = u;
+            }
+            if (g > maxSearchDistance) {
+                continue;
+            }
+            // edges inside the cluster
+            int[] nodes = clusterNodes[cluster];
+            int[][] distances = clusterDistances[cluster];
+            int index = Arrays.binarySearch(nodes, u);
+            for (int j = 0; index >= 0 && j < nodes.length; j++) {
+                if (j != index && distances[index][j] < INF) {
+                    relax(nodes[j], g + distances[index][j], u, tx, ty);
+                }
+            }
+            // transitions to neighbouring clusters
+            if (ux < width - 1 && transitionEast[u]) relax(u + height, g + 1, u, tx, ty);
+            if (ux > 0 && transitionEast[u - height]) relax(u - height, g + 1, u, tx, ty);
+            if (uy < height - 1 && transitionSouth[u]) relax(u + 1, g + 1, u, tx, ty);
+            if (uy > 0 && transitionSouth[u - 1]) relax(u - 1, g + 1, u, tx, ty);
+        }
+
+        if (bestEnd < 0) {
+            return null;
+        }
+
+        // find the first waypoint of the abstract path that isn't the start
+        int waypoint = bestEnd;
+        int previous = goal;
+        while (absParent[waypoint] != start) {
+            previous = waypoint;
+            waypoint = absParent[waypoint];
+        }
+        if (waypoint == start) {
+            waypoint = previous;
+        }
+
+        // refine only this first leg
+        int legCluster = clusterOf(waypoint / height, waypoint % height);
+        if (legCluster != startCluster) {
+            // a transition, a single step across the border
+            TWPath path = new TWPath(waypoint / height, waypoint % height);
+            path.prependStep(sx, sy);
+            return path;
+        }
+        clusterBfs(startCluster, start);
+        return tracePath(start, waypoint);
+    }
+
+    private void relax(int node, int cost, int parent, int tx, int ty) {
+        if (absStamp[node] != searchId) {
+            absStamp[node] = searchId;
+            absCost[node] = INF;
+        }
+        if (cost < absCost[node]) {
+            absCost[node] = cost;
+            absParent[node] = parent;
+            open.push(((long) (cost + heuristic(node, tx, ty)) << 32) | node);
+        }
+    }
+
+    private int heuristic(int cell, int tx, int ty) {
+        return Math.abs(cell / height - tx) + Math.abs(cell % height - ty);
+    }
+
+    /**
+     * Turn the parents of the last in-cluster BFS into a path from start to
+     * target
+     */
+    private TWPath tracePath(int start, int target) {
+        TWPath path = new TWPath(target / height, target % height);
+        int cell = bfsParent[target];
+        while (cell != start) {
+            path.prependStep(cell / height, cell % height);
+            cell = bfsParent[cell];
+        }
+        path.prependStep(start / height, start % height);
+        return path;
+    }
+
+    // ----------------------------------------------------------------
+    // abstract graph maintenance
+
+    private void rebuild() {
+        for (int cx = 0; cx < clustersX; cx++) {
+            for (int cy = 0; cy < clustersY; cy++) {
+                int cluster = cx * clustersY + cy;
+                if (dirtyEastBorder[cluster]) {
+                    dirtyEastBorder[cluster] = false;
+                    if (cx < clustersX - 1) {
+                        buildBorder((cx + 1) * clusterSize - 1, cy * clusterSize, 0, 1,
+                                Math.min(clusterSize, height - cy * clusterSize), transitionEast, height);
+                    }
+                }
+                if (dirtySouthBorder[cluster]) {
+                    dirtySouthBorder[cluster] = false;
+                    if (cy < clustersY - 1) {
+                        buildBorder(cx * clusterSize, (cy + 1) * clusterSize - 1, 1, 0,
+                                Math.min(clusterSize, width - cx * clusterSize), transitionSouth, 1);
+                    }
+                }
+            }
+        }
+        for (int cluster = 0; cluster < dirtyCluster.length; cluster++) {
+            if (dirtyCluster[cluster]) {
+                dirtyCluster[cluster] = false;
+                buildCluster(cluster);
+            }
+        }
+        dirty = false;
+    }
+
+    /**
+     * Recompute the transitions along one border. (x, y) is the first cell on
+     * the near side, (dx, dy) runs along the border and offset is the cell
+     * index step to the far side.
+     */
+    private void buildBorder(int x, int y, int dx, int dy, int length, boolean[] transitions, int offset) {
+        int runStart = -1;
+        for (int i = 0; i <= length; i++) {
+            int cell = (x + dx * i) * height + (y + dy * i);
+            boolean open = i < length
+                    && !isBlocked(cell / height, cell % height)
+                    && !isBlocked((cell + offset) / height, (cell + offset) % height);
+            if (i < length) {
+                transitions[cell] = false;
+            }
+            if (open && runStart < 0) {
+                runStart = i;
+            } else if (!open && runStart >= 0) {
+                int runEnd = i - 1;
+                if (runEnd - runStart + 1 >= WIDE_ENTRANCE) {
+                    transitions[(x + dx * runStart) * height + (y + dy * runStart)] = true;
+                    transitions[(x + dx * runEnd) * height + (y + dy * runEnd)] = true;
+                } else {
+                    int mid = (runStart + runEnd) / 2;
+                    transitions[(x + dx * mid) * height + (y + dy * mid)] = true;
+                }
+                runStart = -1;
+            }
+        }
+    }
+
+    /**
+     * Collect the transition cells of a cluster and the in-cluster distances
+     * between them
+     */
+    private void buildCluster(int cluster) {
+        int cx = cluster / clustersY;
+        int cy = cluster % clustersY;
+        int x0 = cx * clusterSize;
+        int y0 = cy * clusterSize;
+        int x1 = Math.min(x0 + clusterSize, width) - 1;
+        int y1 = Math.min(y0 + clusterSize, height) - 1;
+
+        int[] nodes = new int[4 * clusterSize];
+        int count = 0;
+        for (int x = x0; x <= x1; x++) {
+            for (int y = y0; y <= y1; y++) {
+                if (x != x0 && x != x1 && y != y0 && y != y1) {
+                    continue;
+                }
+                int cell = x * height + y;
+                boolean node = (x == x1 && x < width - 1 && transitionEast[cell])
+                        || (x == x0 && x > 0 && transitionEast[cell - height])
+                        || (y == y1 && y < height - 1 && transitionSouth[cell])
+                        || (y == y0 && y > 0 && transitionSouth[cell - 1]);
+                if (node) {
+                    nodes[count++] = cell;
+                }
+            }
+        }
+        nodes = Arrays.copyOf(nodes, count);
+        Arrays.sort(nodes);
+
+        int[][] distances = new int[count][count];
+        for (int i = 0; i < count; i++) {
+            clusterBfs(cluster, nodes[i]);
+            for (int j = 0; j < count; j++) {
+                distances[i][j] = bfsStamp[nodes[j]] == bfsId ? bfsDist[nodes[j]] : INF;
+            }
+        }
+        clusterNodes[cluster] = nodes;
+        clusterDistances[cluster] = distances;
+    }
+
+    /**
+     * BFS from source restricted to the cells of one cluster. Results are
+     * valid for cells whose bfsStamp equals bfsId.
+     */
+    private void clusterBfs(int cluster, int source) {
+        int x0 = (cluster / clustersY) * clusterSize;
+        int y0 = (cluster % clustersY) * clusterSize;
+        int x1 = Math.min(x0 + clusterSize, width) - 1;
+        int y1 = Math.min(y0 + clusterSize, height) - 1;
+
+        bfsId++;
+        int head = 0;
+        int tail = 0;
+        bfsStamp[source] = bfsId;
+        bfsDist[source] = 0;
+        bfsParent[source] = -1;
+        bfsQueue[tail++] = source;
+        while (head < tail) {
+            int u = bfsQueue[head++];
+            int ux = u / height;
+            int uy = u % height;
+            int d = bfsDist[u] + 1;
+            if (ux < x1) tail = visit(u, u + height, d, tail);
+            if (ux > x0) tail = visit(u, u - height, d, tail);
+            if (uy < y1) tail = visit(u, u + 1, d, tail);
+            if (uy > y0) tail = visit(u, u - 1, d, tail);
+        }
+    }
+
+    private int visit(int parent, int cell, int d, int tail) {
+        if (bfsStamp[cell] == bfsId || isBlocked(cell / height, cell % height)) {
+            return tail;
+        }
+        bfsStamp[cell] = bfsId;
+        bfsDist[cell] = d;
+        bfsParent[cell] = parent;
+        bfsQueue[tail++] = cell;
+        return tail;
+    }
+
+    private int clusterOf(int x, int y) {
+        return (x / clusterSize) * clustersY + y / clusterSize;
+    }
+
+    private boolean isBlocked(int x, int y) {
+        TWAgentWorkingMemory memory = agent.getMemory();
+        return TWAgentWorkingMemory.isBlocked(memory.getBlockedBits(), memory.getBlockedWordsPerRow(), x, y);
+    }
+}
@@ -0,0 +1,399 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentWorkingMemory;
+import tileworld.environment.TWEnvironment;
+
+/**
+ * JumpPointPathGenerator
+ *
+ * Description: Jump Point Search for the 4-connected Tileworld grid. Instead
+ * of pushing every neighbour onto the open list like AstarPathGenerator, the
+ * search "jumps" in a straight line until it reaches a cell that has a forced
+ * neighbour (an obstacle edge that could make a turn necessary) or the goal.
+ * Only those jump points are ever put on the open list, so in the mostly open
+ * maps Tileworld produces the number of expansions drops sharply while the
+ * resulting paths have the same length as A*.
+ *
+ * The 4-connected rules used here are:
+ *
+ * - moving horizontally, a cell is a jump point if the cell above (below) it
+ * is free while the cell above (below) the previous cell was blocked.
+ *
+ * - moving vertically, the same test is done on the left and right, and in
+ * addition a cell is a jump point if a horizontal jump from it finds one.
+ *
+ * Blocked cells are taken from the agent's memory, exactly like A*. As in
+ * AstarPathGenerator the jump points and open list are borrowed from a
+ * per-thread workspace rather than allocated per agent, and the returned path
+ * is reused by the next search.
+ */
+public class JumpPointPathGenerator implements TWPathGenerator {
+
+    /** The map being searched */
+    private TWEnvironment map;
+    /** Reference to this agent, for looking in memory */
+    private TWAgent agent;
+    /** The maximum path length we're willing to accept before giving up */
+    private int maxSearchDistance;
+    /**
+     * The search state borrowed from this thread's workspace for the current
+     * search, see {@link Workspace}
+     */
+    private Workspace workspace;
+    /**
+     * The path returned by findPath. It is refilled by every search, so a
+     * caller must be done with (or copy) one result before asking for the next
+     */
+    private TWPath path = new TWPath(0, 0, 64);
+    /** Number of jump points expanded by the last search */
+    private int expansions;
+    /** The memory's obstacle bitmap, read directly while jumping */
+    private long[] blocked;
+    private int wordsPerRow;
+
+    public JumpPointPathGenerator(TWEnvironment map, TWAgent agent, int maxSearchDistance) {
+        this.map = map;
+        this.agent = agent;
+        this.maxSearchDistance = maxSearchDistance;
+    }
+
+    /**
+     * @return the number of jump points expanded by the last call to findPath
+     */
+    public int getExpansions() {
+        return expansions;
+    }
+
+    public TWPath findPath(int sx, int sy, int tx, int ty) {
+        expansions = 0;
+        blocked = agent.getMemory().getBlockedBits();
+        wordsPerRow = agent.getMemory().getBlockedWordsPerRow();
+        // easy first check, if the destination is blocked, we can't get there
+        if (!isWalkable(tx, ty) || (sx == tx && sy == ty)) {
+            return null;
+        }
+
+        workspace = Workspace.get(map.getxDimension(), map.getyDimension());
+        workspace.searchId++;
+        if (workspace.searchId == 0) {
+            for (JumpNode[] column : workspace.nodes) {
+                for (JumpNode node : column) {
+                    node.searchId = -1;
+                }
+            }
+            workspace.searchId = 1;
+        }
+        JumpNodeHeap open = workspace.open;
+        open.clear();
+
+        JumpNode start = getNode(sx, sy);
+        start.cost = 0;
+        start.priority = heuristic(sx, sy, tx, ty);
+        open.add(start);
+
+        JumpNode goal = getNode(tx, ty);
+
+        while (!open.isEmpty()) {
+            JumpNode current = open.poll();
+            if (current == goal) {
+                break;
+            }
+            current.closed = true;
+            expansions++;
+
+            int px = current.parent == null ? current.x : current.parent.x;
+            int py = current.parent == null ? current.y : current.parent.y;
+            int dx = Integer.signum(current.x - px);
+            int dy = Integer.signum(current.y - py);
+
+            // pruned neighbour set, the start node has no parent so it
+            // considers all four directions
+            if (dx != 0) {
+                expand(current, dx, 0, tx, ty);
+                expand(current, 0, -1, tx, ty);
+                expand(current, 0, 1, tx, ty);
+            } else if (dy != 0) {
+                expand(current, 0, dy, tx, ty);
+                expand(current, -1, 0, tx, ty);
+                expand(current, 1, 0, tx, ty);
+            } else {
+                expand(current, 1, 0, tx, ty);
+                expand(current, -1, 0, tx, ty);
+                expand(current, 0, 1, tx, ty);
+                expand(current, 0, -1, tx, ty);
+            }
+        }
+
+        if (goal.parent == null) {
+            return null;
+        }
+
+        // walk the jump points back to the start, filling in every cell
+        // between consecutive jump points
+        path.reset(tx, ty);
+        JumpNode node = goal;
+        int x = tx;
+        int y = ty;
+        while (node.parent != null) {
+            JumpNode parent = node.parent;
+            int stepX = Integer.signum(parent.x - x);
+            int stepY = Integer.signum(parent.y - y);
+            while (x != parent.x || y != parent.y) {
+                x += stepX;
+                y += stepY;
+                path.prependStep(x, y);
+            }
+            node = parent;
+        }
+        return path;
+    }
+
+    /**
+     * Jump from current in direction (dx, dy) and, if a jump point is found,
+     * relax it.
+     */
+    private void expand(JumpNode current, int dx, int dy, int tx, int ty) {
+        int nx = current.x + dx;
+        int ny = current.y + dy;
+        if (!isWalkable(nx, ny)) {
+            return;
+        }
+        int jumped = jump(nx, ny, dx, dy, tx, ty);
+        if (jumped < 0) {
+            return;
+        }
+        JumpNode next = getNode(jumped >> 16, jumped & 0xFFFF);
+        if (next.closed) {
+            return;
+        }
+        int cost = current.cost + Math.abs(next.x - current.x) + Math.abs(next.y - current.y);
+        if (cost > maxSearchDistance) {
+            return;
+        }
+        if (cost < next.cost) {
+            next.cost = cost;
+            next.parent = current;
+            next.priority = cost + heuristic(next.x, next.y, tx, ty);
+            if (next.heapIndex >= 0) {
+                workspace.open.decreaseKey(next);
+            } else {
+                workspace.open.add(next);
+            }
+        }
+    }
+
+    /**
+     * Move from (x, y) in direction (dx, dy) until a jump point, the goal or
+     * a blocked cell is reached.
+     *
+     * @return the jump point packed as (x &lt;&lt; 16) | y, or -1 if there is none
+     */
+    private int jump(int x, int y, int dx, int dy, int tx, int ty) {
+        while (isWalkable(x, y)) {
+            if (x == tx && y == ty) {
+                return (x << 16) | y;
+            }
+            if (dx != 0) {
+                if ((isWalkable(x, y - 1) && !isWalkable(x - dx, y - 1))
+                        || (isWalkable(x, y + 1) && !isWalkable(x - dx, y + 1))) {
+                    return (x << 16) | y;
+                }
+            } else {
+                if ((isWalkable(x - 1, y) && !isWalkable(x - 1, y - dy))
+                        || (isWalkable(x + 1, y) && !isWalkable(x + 1, y - dy))) {
+                    return (x << 16) | y;
+                }
+                // a vertical move must stop wherever a horizontal jump would
+                // find something, otherwise the turn would be missed
+                if (jump(x + 1, y, 1, 0, tx, ty) >= 0 || jump(x - 1, y, -1, 0, tx, ty) >= 0) {
+                    return (x << 16) | y;
+                }
+            }
+            x += dx;
+            y += dy;
+        }
+        return -1;
+    }
+
+    private boolean isWalkable(int x, int y) {
+        return map.isValidLocation(x, y) && !TWAgentWorkingMemory.isBlocked(blocked, wordsPerRow, x, y);
+    }
+
+    /**
+     * Manhattan distance, admissible and consistent for 4-connected movement
+     */
+    private int heuristic(int x, int y, int tx, int ty) {
+        return Math.abs(tx - x) + Math.abs(ty - y);
+    }
+
+    private JumpNode getNode(int x, int y) {
+        JumpNode node = workspace.nodes[x][y];
+        if (node.searchId != workspace.searchId) {
+            node.searchId = workspace.searchId;
+            node.cost = Integer.MAX_VALUE;
+            node.parent = null;
+            node.closed = false;
+            node.heapIndex = -1;
+        }
+        return node;
+    }
+
+    /**
+     * The jump points and open list of a search, one per thread and map size.
+     * Agents stepped on the same thread search one after another, so they can
+     * share the map sized node array instead of holding one each.
+     */
+    private static final class Workspace {
+
+        /** The workspace of each thread */
+        private static final ThreadLocal<Workspace> POOL = new ThreadLocal<Workspace>();
+
+        /** Jump points across the map, one per cell, reset lazily per search */
+        private final JumpNode[][] nodes;
+        /** The jump points that still need expanding */
+        private final JumpNodeHeap open = new JumpNodeHeap();
+        /** Generation counter of the current search, see AstarPathGenerator */
+        private int searchId;
+
+        private Workspace(int width, int height) {
+            nodes = new JumpNode[width][height];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    nodes[x][y] = new JumpNode(x, y);
+                }
+            }
+        }
+
+        /**
+         * Borrow the calling thread's workspace, creating it on first use or
+         * when the map size differs from the previous one
+         */
+        private static Workspace get(int width, int height) {
+            Workspace workspace = POOL.get();
+            if (workspace == null || workspace.nodes.length != width || workspace.nodes[0].length != height) {
+                workspace = new Workspace(width, height);
+                POOL.set(workspace);
+            }
+            return workspace;
+        }
+    }
+
+    /**
+     * A binary min-heap of jump points ordered on priority, in which each
+     * node remembers its slot so that a node whose cost drops can be moved
+     * up in place, as in AstarPathGenerator, instead of being searched for
+     * and removed.
+     */
+    private static final class JumpNodeHeap {
+
+        private JumpNode[] heap = new JumpNode[64];
+        private int size;
+
+        /**
+         * Empty the heap, marking every remaining node as no longer queued
+         */
+        private void clear() {
+            for (int i = 0; i < size; i++) {
+                heap[i].heapIndex = -1;
+                heap[i] = null;
+            }
+            size = 0;
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private void add(JumpNode node) {
+            if (size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+            }
+            heap[size] = node;
+            siftUp(size++);
+        }
+
+        /**
+         * Remove and return the node with the lowest priority
+         */
+        private JumpNode poll() {
+            JumpNode first = heap[0];
+            first.heapIndex = -1;
+            JumpNode last = heap[--size];
+            heap[size] = null;
+            if (size > 0) {
+                heap[0] = last;
+                siftDown(0);
+            }
+            return first;
+        }
+
+        /**
+         * Restore heap order after the priority of a queued node was lowered
+         */
+        private void decreaseKey(JumpNode node) {
+            siftUp(node.heapIndex);
+        }
+
+        private void siftUp(int i) {
+            JumpNode node = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                JumpNode p = heap[parent];
+                if (node.priority >= p.priority) {
+                    break;
+                }
+                heap[i] = p;
+                p.heapIndex = i;
+                i = parent;
+            }
+            heap[i] = node;
+            node.heapIndex = i;
+        }
+
+        private void siftDown(int i) {
+            JumpNode node = heap[i];
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                int right = child + 1;
+                if (right < size && heap[right].priority < heap[child].priority) {
+                    child = right;
+                }
+                if (node.priority <= heap[child].priority) {
+                    break;
+                }
+                heap[i] = heap[child];
+                heap[i].heapIndex = i;
+                i = child;
+            }
+            heap[i] = node;
+            node.heapIndex = i;
+        }
+    }
+
+    /**
+     * A single jump point in the search graph
+     */
+    private static class JumpNode {
+
+        private final int x;
+        private final int y;
+        /** The path cost from the start to this node */
+        private int cost;
+        /** cost + heuristic, the key of the open heap */
+        private int priority;
+        /** The jump point we jumped from to reach this one */
+        private JumpNode parent;
+        private boolean closed;
+        /** The node's slot in the open heap, -1 when it is not queued */
+        private int heapIndex = -1;
+        private int searchId;
+
+        public JumpNode(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
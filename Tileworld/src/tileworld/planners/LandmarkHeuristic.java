@@ -0,0 +1,58 @@
+package tileworld.planners;
+
+import tileworld.agent.TWAgentWorkingMemory;
+
+/**
+ * LandmarkHeuristic
+ *
+ * Description: The ALT heuristic (A*, landmarks and the triangle inequality,
+ * Goldberg and Harrelson, 2005). True path distances from a few landmark
+ * cells are kept for every cell, and for any landmark L
+ *
+ * d(n, t) >= |d(L, t) - d(L, n)|
+ *
+ * so the largest such difference is a lower bound on the remaining path
+ * length. Unlike Manhattan distance it accounts for walls of remembered
+ * obstacles, which can cut the number of nodes A* expands considerably.
+ * The result is never below the Manhattan distance.
+ *
+ * Each landmark is a DistanceField, so the distances follow the agent's
+ * memory incrementally as obstacles appear and expire. Landmarks are placed
+ * at the corners of the map first, then at the middle of each edge.
+ */
+public class LandmarkHeuristic implements TWHeuristic {
+
+    private final DistanceField[] landmarks;
+
+    /**
+     * @param memory the memory whose obstacles the distances respect
+     * @param width  map width
+     * @param height map height
+     * @param count  number of landmarks, at most 8
+     */
+    public LandmarkHeuristic(TWAgentWorkingMemory memory, int width, int height, int count) {
+        int[][] positions = {
+            {0, 0}, {width - 1, height - 1}, {width - 1, 0}, {0, height - 1},
+            {width / 2, 0}, {width / 2, height - 1}, {0, height / 2}, {width - 1, height / 2}
+        };
+        this.landmarks = new DistanceField[Math.min(count, positions.length)];
+        for (int i = 0; i < landmarks.length; i++) {
+            landmarks[i] = new DistanceField(memory, width, height, positions[i][0], positions[i][1]);
+        }
+    }
+
+    @Override
+    public double getCost(int x, int y, int tx, int ty) {
+        int best = Math.abs(tx - x) + Math.abs(ty - y);
+        for (int i = 0; i < landmarks.length; i++) {
+            int dn = landmarks[i].getDistance(x, y);
+            int dt = landmarks[i].getDistance(tx, ty);
+            // a landmark that cannot reach both cells says nothing about them
+            if (dn == DistanceField.UNREACHABLE || dt == DistanceField.UNREACHABLE) {
+                continue;
+            }
+            best = Math.max(best, Math.abs(dt - dn));
+        }
+        return best;
+    }
+}
@@ -0,0 +1,242 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+
+import tileworld.agent.TWAgentWorkingMemory;
+
+/**
+ * LocalDistanceMap
+ *
+ * Description: True (obstacle aware) path distances from one source cell,
+ * usually the agent, to every cell within a bounded radius. Ranking candidate
+ * tiles and holes by Manhattan distance often picks one walled off by
+ * remembered obstacles, and a separate A* per candidate is expensive. A single
+ * bounded BFS answers every candidate in one pass.
+ *
+ * Unlike DistanceField the map is not kept up to date: it is recomputed from
+ * scratch by compute(), which only touches cells within the bound and resets
+ * them lazily by generation stamp. Callers pick the bound from the cells
+ * they are about to query and extend() it, resuming from the frontier, when
+ * one turns out to lie beyond it, see isResolved().
+ *
+ * The distance, stamp and queue buffers are borrowed from a per-thread
+ * workspace, as in AstarPathGenerator, instead of three map sized arrays per
+ * map. Another map computed on the same thread overwrites them, so results
+ * may only be read while isCurrent() holds.
+ */
+public class LocalDistanceMap {
+
+    /** Distance of cells that cannot be reached from the source at all */
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final TWAgentWorkingMemory memory;
+    private final int width;
+    private final int height;
+
+    /** The workspace holding the last BFS, and that BFS's generation in it */
+    private Workspace workspace;
+    private int searchId;
+
+    private int sourceX = -1;
+    private int sourceY = -1;
+    private int maxDistance;
+    /** True if the last BFS stopped at the bound rather than running out of cells */
+    private boolean truncated;
+    /** Queue positions of the last BFS, kept so that extend() can resume it */
+    private int head;
+    private int tail;
+
+    /**
+     * @param memory the memory supplying blocked cells
+     * @param width  map width
+     * @param height map height
+     */
+    public LocalDistanceMap(TWAgentWorkingMemory memory, int width, int height) {
+        this.memory = memory;
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Run a BFS from (sx, sy) over the cells at most maxDistance steps away.
+     *
+     * @param sx          x-coordinate of the source
+     * @param sy          y-coordinate of the source
+     * @param maxDistance bound on the distances computed
+     */
+    public void compute(int sx, int sy, int maxDistance) {
+        this.sourceX = sx;
+        this.sourceY = sy;
+
+        workspace = Workspace.get(width, height);
+        workspace.searchId++;
+        if (workspace.searchId == 0) {
+            Arrays.fill(workspace.stamp, -1);
+            workspace.searchId = 1;
+        }
+        searchId = workspace.searchId;
+
+        int source = sx * height + sy;
+        head = 0;
+        tail = 0;
+        workspace.stamp[source] = searchId;
+        workspace.dist[source] = 0;
+        workspace.queue[tail++] = source;
+        // nothing is computed yet: the source is the whole frontier
+        this.maxDistance = -1;
+        this.truncated = true;
+        extend(maxDistance);
+    }
+
+    /**
+     * Continue the last BFS up to a larger bound. The frontier where it
+     * stopped is still in the queue, so only the cells between the two
+     * bounds are visited. The BFS must still be current and the blocked
+     * cells unchanged since it was computed.
+     *
+     * @param maxDistance the new bound, ignored if not larger than the old
+     */
+    public void extend(int maxDistance) {
+        if (!truncated || maxDistance <= this.maxDistance) {
+            return;
+        }
+        this.maxDistance = maxDistance;
+        this.truncated = false;
+
+        long[] blocked = memory.getBlockedBits();
+        int wordsPerRow = memory.getBlockedWordsPerRow();
+        int[] dist = workspace.dist;
+        int[] queue = workspace.queue;
+        while (head < tail) {
+            int u = queue[head];
+            int d = dist[u] + 1;
+            if (d > maxDistance) {
+                // leave u in the queue so that extend() can resume from it
+                truncated = true;
+                break;
+            }
+            head++;
+            int ux = u / height;
+            int uy = u % height;
+            if (ux > 0) tail = visit(u - height, d, tail, blocked, wordsPerRow);
+            if (ux < width - 1) tail = visit(u + height, d, tail, blocked, wordsPerRow);
+            if (uy > 0) tail = visit(u - 1, d, tail, blocked, wordsPerRow);
+            if (uy < height - 1) tail = visit(u + 1, d, tail, blocked, wordsPerRow);
+        }
+    }
+
+    private int visit(int v, int d, int tail, long[] blocked, int wordsPerRow) {
+        if (workspace.stamp[v] == searchId) {
+            return tail;
+        }
+        workspace.stamp[v] = searchId;
+        if (TWAgentWorkingMemory.isBlocked(blocked, wordsPerRow, v / height, v % height)) {
+            // blocked cells are never entered, remember them as unreachable
+            workspace.dist[v] = UNREACHABLE;
+            return tail;
+        }
+        workspace.dist[v] = d;
+        workspace.queue[tail++] = v;
+        return tail;
+    }
+
+    /**
+     * @return true if the calling thread's workspace still holds the last
+     *         BFS of this map, so its distances may be read
+     */
+    public boolean isCurrent() {
+        return workspace != null && workspace == Workspace.POOL.get() && workspace.searchId == searchId;
+    }
+
+    /**
+     * @return true if the last BFS determined the exact distance to (x, y),
+     *         false if the cell lies beyond the bound and a larger one is
+     *         needed
+     */
+    public boolean isResolved(int x, int y) {
+        return !truncated || workspace.stamp[x * height + y] == searchId;
+    }
+
+    /**
+     * Path distance from the source to (x, y). Cells beyond the bound get a
+     * lower bound of bound + 1 (or their Manhattan distance if larger), so
+     * they still sort after every cell within it.
+     *
+     * Only valid while isCurrent() holds.
+     *
+     * @return the distance, or UNREACHABLE if the cell provably cannot be
+     *         reached
+     */
+    public int getDistance(int x, int y) {
+        int cell = x * height + y;
+        if (workspace.stamp[cell] == searchId && workspace.dist[cell] != UNREACHABLE) {
+            return workspace.dist[cell];
+        }
+        if (truncated) {
+            int manhattan = Math.abs(x - sourceX) + Math.abs(y - sourceY);
+            return Math.max(maxDistance + 1, manhattan);
+        }
+        return UNREACHABLE;
+    }
+
+    /**
+     * @return x-coordinate of the source of the last BFS, -1 before the first
+     */
+    public int getSourceX() {
+        return sourceX;
+    }
+
+    /**
+     * @return y-coordinate of the source of the last BFS, -1 before the first
+     */
+    public int getSourceY() {
+        return sourceY;
+    }
+
+    /**
+     * @return bound of the last BFS
+     */
+    public int getMaxDistance() {
+        return maxDistance;
+    }
+
+    /**
+     * The BFS buffers, one set per thread and map size
+     */
+    private static final class Workspace {
+
+        /** The workspace of each thread */
+        private static final ThreadLocal<Workspace> POOL = new ThreadLocal<Workspace>();
+
+        /** Distance from the source of each cell, valid where stamp matches */
+        private final int[] dist;
+        private final int[] stamp;
+        /** BFS queue */
+        private final int[] queue;
+        /** Generation of the last BFS run in this workspace, by any map */
+        private int searchId;
+        private final int width;
+        private final int height;
+
+        private Workspace(int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.dist = new int[width * height];
+            this.stamp = new int[width * height];
+            this.queue = new int[width * height];
+        }
+
+        /**
+         * Borrow the calling thread's workspace, creating it on first use or
+         * when the map size differs from the previous one
+         */
+        private static Workspace get(int width, int height) {
+            Workspace workspace = POOL.get();
+            if (workspace == null || workspace.width != width || workspace.height != height) {
+                workspace = new Workspace(width, height);
+                POOL.set(workspace);
+            }
+            return workspace;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+
+/**
+ * LongMinHeap
+ *
+ * Description: A binary min-heap of primitive longs, used as the open list of
+ * searches that pack an entry into one long, typically (f &lt;&lt; 32) | node,
+ * so that ordering the longs orders by f and then by node. Unlike a
+ * PriorityQueue of boxed or array entries, pushing allocates nothing once the
+ * backing array has grown to the largest open list seen.
+ *
+ * There is no decrease-key: a search pushes a node again when its cost drops
+ * and skips the stale entry when it is popped.
+ */
+public class LongMinHeap {
+
+    private long[] heap = new long[256];
+    private int size;
+
+    /**
+     * Add an entry
+     */
+    public void push(long item) {
+        if (size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+        }
+        int i = size++;
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (heap[p] <= item) {
+                break;
+            }
+            heap[i] = heap[p];
+            i = p;
+        }
+        heap[i] = item;
+    }
+
+    /**
+     * Remove and return the smallest entry, the heap must not be empty
+     */
+    public long pop() {
+        long top = heap[0];
+        long item = heap[--size];
+        int i = 0;
+        int half = size >>> 1;
+        while (i < half) {
+            int c = 2 * i + 1;
+            if (c + 1 < size && heap[c + 1] < heap[c]) {
+                c++;
+            }
+            if (item <= heap[c]) {
+                break;
+            }
+            heap[i] = heap[c];
+            i = c;
+        }
+        if (size > 0) {
+            heap[i] = item;
+        }
+        return top;
+    }
+
+    /**
+     * @return true if there are no entries
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return number of entries, stale ones included
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Remove every entry, keeping the backing array
+     */
+    public void clear() {
+        size = 0;
+    }
+}
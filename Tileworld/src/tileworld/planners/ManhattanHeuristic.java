@@ -0,0 +1,17 @@
+package tileworld.planners;
+
+/**
+ * ManhattanHeuristic
+ *
+ * Description: The exact path length on an empty 4-connected grid. Agents
+ * cannot move diagonally, so this is never below the Euclidean distance and
+ * still never overestimates, which makes it the default for
+ * AstarPathGenerator.
+ */
+public class ManhattanHeuristic implements TWHeuristic {
+
+    @Override
+    public double getCost(int x, int y, int tx, int ty) {
+        return Math.abs(tx - x) + Math.abs(ty - y);
+    }
+}
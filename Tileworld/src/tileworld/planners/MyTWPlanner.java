@@ -4,6 +4,7 @@
  */
 package tileworld.planners;
 
+import java.util.ArrayList;
 import sim.util.Int2D;
 import tileworld.environment.TWDirection;
 
@@ -25,6 +26,10 @@ public class MyTWPlanner implements TWPlanner {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    public ArrayList<Int2D> getGoals() {
+        throw new UnsupportedOperationException("Not supported yet.");
+    }
+
     public Int2D getCurrentGoal() {
         throw new UnsupportedOperationException("Not supported yet.");
     }
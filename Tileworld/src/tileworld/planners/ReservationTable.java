@@ -0,0 +1,248 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * ReservationTable
+ *
+ * Description: A space-time reservation table shared by all agents of one
+ * environment, as used by cooperative A* (Silver, 2005). An agent that has
+ * planned a path reserves every (x, y, t) cell it will occupy, so agents
+ * planning after it in the same step route around it instead of contending
+ * for the same cells.
+ *
+ * An agent holds at most one set of reservations: reserving again first
+ * releases whatever it held before. Reservations in the past are never
+ * consulted and disappear when their owner next reserves. An agent that is
+ * not going to plan a path this step (picking up, refuelling, waiting)
+ * should hold its current cell instead, so that the path it reserved
+ * earlier does not linger and others do not walk into it.
+ *
+ * All methods are synchronized, so the table may be shared by agents that
+ * are stepped in parallel. Cooperation itself still relies on agents
+ * planning one after another within a step, as MASON's schedule steps them,
+ * since an agent only avoids the reservations made before it plans.
+ *
+ * Cooperative searches ask isMoveBlocked for every move they consider, so the
+ * cells are kept in an open addressing table keyed on the packed (t, x, y),
+ * like SpaceTimeSearch's state table, rather than a map of boxed keys.
+ */
+public class ReservationTable {
+
+    /** Packed key + 1 of each slot, 0 for an empty slot */
+    private long[] keys = new long[256];
+    /** Owner of the (x, y, t) cell in each slot */
+    private Object[] owners = new Object[256];
+    /** Number of (x, y, t) cells currently reserved */
+    private int count;
+    /** Keys currently held by each owner */
+    private final HashMap<Object, Held> held = new HashMap<Object, Held>();
+
+    /**
+     * @return the owner of (x, y) at time t, or null if it is free
+     */
+    public synchronized Object getOwner(int x, int y, int t) {
+        return owner(key(x, y, t));
+    }
+
+    /**
+     * @return true if (x, y) at time t is reserved by someone other than owner
+     */
+    public synchronized boolean isReserved(int x, int y, int t, Object owner) {
+        Object o = owner(key(x, y, t));
+        return o != null && o != owner;
+    }
+
+    /**
+     * Check whether moving from (x, y) to (nx, ny) between t and t + 1 would
+     * conflict with another agent, either by entering a reserved cell or by
+     * swapping places with an agent coming the other way.
+     */
+    public synchronized boolean isMoveBlocked(int x, int y, int nx, int ny, int t, Object owner) {
+        Object o = owner(key(nx, ny, t + 1));
+        if (o != null && o != owner) {
+            return true;
+        }
+        Object other = owner(key(nx, ny, t));
+        return other != null && other != owner && other == owner(key(x, y, t + 1));
+    }
+
+    /**
+     * Replace the owner's reservations by the cells of a path. The path is
+     * given as parallel coordinate arrays, cell i being occupied at time
+     * startTime + i.
+     *
+     * @param owner     the reserving agent
+     * @param xs        x-coordinates of the path, starting with the current cell
+     * @param ys        y-coordinates of the path
+     * @param length    number of cells to reserve
+     * @param startTime time at which the first cell is occupied
+     */
+    public synchronized void reserve(Object owner, int[] xs, int[] ys, int length, int startTime) {
+        Held keys = releaseAll(owner);
+        for (int i = 0; i < length; i++) {
+            claim(owner, keys, key(xs[i], ys[i], startTime + i));
+        }
+    }
+
+    /**
+     * Replace the owner's reservations by its current cell, at time and
+     * time + 1, for an agent that stays put or acts without planning a path.
+     *
+     * @param owner the agent
+     * @param x     x-coordinate of the agent
+     * @param y     y-coordinate of the agent
+     * @param time  the current time
+     */
+    public synchronized void hold(Object owner, int x, int y, int time) {
+        Held keys = releaseAll(owner);
+        claim(owner, keys, key(x, y, time));
+        claim(owner, keys, key(x, y, time + 1));
+    }
+
+    /**
+     * Drop every reservation held by the owner
+     */
+    public synchronized void release(Object owner) {
+        Held keys = held.get(owner);
+        if (keys == null) {
+            return;
+        }
+        for (int i = 0; i < keys.count; i++) {
+            int slot = find(keys.keys[i]);
+            if (slot >= 0 && owners[slot] == owner) {
+                remove(slot);
+            }
+        }
+        keys.count = 0;
+    }
+
+    /**
+     * @return number of (x, y, t) cells currently reserved
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Release the owner's reservations and return its (empty) key list
+     */
+    private Held releaseAll(Object owner) {
+        release(owner);
+        Held keys = held.get(owner);
+        if (keys == null) {
+            keys = new Held();
+            held.put(owner, keys);
+        }
+        return keys;
+    }
+
+    /**
+     * Reserve one key for the owner unless somebody else reserved it first
+     */
+    private void claim(Object owner, Held keys, long k) {
+        int mask = this.keys.length - 1;
+        int i = slot(k, mask);
+        while (this.keys[i] != 0) {
+            if (this.keys[i] == k + 1) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        this.keys[i] = k + 1;
+        owners[i] = owner;
+        count++;
+        keys.add(k);
+        if (count * 2 > this.keys.length) {
+            rehash();
+        }
+    }
+
+    /**
+     * @return the owner of a key, or null if it is not reserved
+     */
+    private Object owner(long k) {
+        int i = find(k);
+        return i < 0 ? null : owners[i];
+    }
+
+    /**
+     * @return the slot holding a key, or -1 if it is not reserved
+     */
+    private int find(long k) {
+        int mask = keys.length - 1;
+        int i = slot(k, mask);
+        while (keys[i] != 0) {
+            if (keys[i] == k + 1) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Empty a slot, moving later entries of the probe chain back into the
+     * gap so that lookups never need to skip deleted slots
+     */
+    private void remove(int gap) {
+        int mask = keys.length - 1;
+        for (int j = (gap + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = slot(keys[j] - 1, mask);
+            // an entry may fill the gap only if its home slot is not
+            // between the gap and where it now sits
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                owners[gap] = owners[j];
+                gap = j;
+            }
+        }
+        keys[gap] = 0;
+        owners[gap] = null;
+        count--;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        Object[] oldOwners = owners;
+        keys = new long[oldKeys.length * 2];
+        owners = new Object[keys.length];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != 0) {
+                int i = slot(oldKeys[j] - 1, mask);
+                while (keys[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                owners[i] = oldOwners[j];
+            }
+        }
+    }
+
+    private static int slot(long k, int mask) {
+        return (int) ((k * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    private static long key(int x, int y, int t) {
+        return ((long) t << 32) | ((long) x << 16) | y;
+    }
+
+    /**
+     * The keys one owner holds, kept so they can be released without
+     * scanning the table
+     */
+    private static final class Held {
+
+        private long[] keys = new long[16];
+        private int count;
+
+        private void add(long k) {
+            if (count == keys.length) {
+                keys = Arrays.copyOf(keys, count * 2);
+            }
+            keys[count++] = k;
+        }
+    }
+}
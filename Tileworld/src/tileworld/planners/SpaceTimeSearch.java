@@ -0,0 +1,316 @@
+package tileworld.planners;
+
+import java.util.Arrays;
+
+import tileworld.environment.TWDirection;
+
+/**
+ * SpaceTimeSearch
+ *
+ * Description: A* over (x, y, t) for the first horizon steps of a path, with
+ * waiting in place as a fifth move. This is the search shared by the
+ * generators that plan against obstacles which change over time, such as
+ * CooperativePathGenerator (other agents' reservations) and
+ * TimeExpandedPathGenerator (obstacles about to expire). Each of them only
+ * supplies a MoveFilter saying whether a move is blocked at a given time.
+ *
+ * A dense table of every (x, y, t) state would need cells * (horizon + 1)
+ * entries per agent, tens of megabytes on a large map. Instead only the
+ * states a search actually touches get a node, found through an open
+ * addressing hash table, and the nodes, table and open list live in a
+ * per-thread workspace like AstarPathGenerator's. Planner memory is then
+ * proportional to the states one search touches times the number of
+ * threads.
+ */
+public class SpaceTimeSearch {
+
+    /**
+     * Decides which moves a space-time search may make
+     */
+    public interface MoveFilter {
+
+        /**
+         * @param x  x-coordinate the move starts from
+         * @param y  y-coordinate the move starts from
+         * @param nx x-coordinate the move ends at, equal to x when waiting
+         * @param ny y-coordinate the move ends at, equal to y when waiting
+         * @param dt steps from now at which the move is made
+         * @return true if the move may not be made at that time
+         */
+        boolean isBlocked(int x, int y, int nx, int ny, int dt);
+    }
+
+    private final int width;
+    private final int height;
+    private final int cells;
+    /** Number of time steps searched in space-time */
+    private final int horizon;
+
+    /** Cells of the last search's path, position i being reached after i steps */
+    private final int[] pathX;
+    private final int[] pathY;
+    /** Number of positions in the last search's path, -1 if it failed */
+    private int length = -1;
+
+    /**
+     * @param width   map width
+     * @param height  map height
+     * @param horizon number of time steps searched
+     */
+    public SpaceTimeSearch(int width, int height, int horizon) {
+        this.width = width;
+        this.height = height;
+        this.cells = width * height;
+        this.horizon = horizon;
+        this.pathX = new int[horizon + 1];
+        this.pathY = new int[horizon + 1];
+    }
+
+    /**
+     * Search from (sx, sy) towards (tx, ty) until the target is reached or
+     * horizon steps have been planned, whichever comes first.
+     *
+     * @return number of positions of the path found, including the start,
+     *         or -1 if no move sequence is possible at all
+     */
+    public int search(int sx, int sy, int tx, int ty, MoveFilter filter) {
+        Workspace ws = Workspace.get();
+        ws.clear();
+        length = -1;
+
+        int start = sx * height + sy;
+        ws.g[ws.node(start)] = 0;
+        ws.open.push(pack(heuristic(sx, sy, tx, ty), start));
+
+        int end = -1;
+        while (!ws.open.isEmpty()) {
+            int s = (int) ws.open.pop();
+            int n = ws.node(s);
+            if (ws.closed[n]) {
+                continue;
+            }
+            ws.closed[n] = true;
+
+            int dt = s / cells;
+            int cell = s % cells;
+            int x = cell / height;
+            int y = cell % height;
+            if ((x == tx && y == ty) || dt == horizon) {
+                end = n;
+                break;
+            }
+
+            // the four moves and a wait, each taking one time step
+            for (int d = 0; d < 5; d++) {
+                int nx = x + (d == 0 ? 1 : d == 1 ? -1 : 0);
+                int ny = y + (d == 2 ? 1 : d == 3 ? -1 : 0);
+                if (nx < 0 || ny < 0 || nx >= width || ny >= height) {
+                    continue;
+                }
+                if (filter.isBlocked(x, y, nx, ny, dt)) {
+                    continue;
+                }
+                int ns = (dt + 1) * cells + nx * height + ny;
+                int next = ws.node(ns);
+                int cost = ws.g[n] + 1;
+                if (!ws.closed[next] && cost < ws.g[next]) {
+                    ws.g[next] = cost;
+                    ws.parent[next] = n;
+                    ws.open.push(pack(cost + heuristic(nx, ny, tx, ty), ns));
+                }
+            }
+        }
+
+        if (end < 0) {
+            return -1;
+        }
+
+        // walk the parents back to recover the space-time prefix
+        length = ws.state[end] / cells + 1;
+        for (int n = end, i = length - 1; i >= 0; n = ws.parent[n], i--) {
+            int cell = ws.state[n] % cells;
+            pathX[i] = cell / height;
+            pathY[i] = cell % height;
+        }
+        return length;
+    }
+
+    /**
+     * Turn the last search's result into a path to (tx, ty), completing it
+     * with an ordinary generator if the search stopped at the horizon.
+     *
+     * @return the path, or null if the search failed or the completion did
+     */
+    public TWPath toPath(int tx, int ty, TWPathGenerator completion) {
+        if (length < 0) {
+            return null;
+        }
+        TWPath path = new TWPath(tx, ty);
+        for (int i = 0; i < length - 1; i++) {
+            path.appendStep(pathX[i], pathY[i], getDirection(pathX[i], pathY[i], pathX[i + 1], pathY[i + 1]));
+        }
+
+        int ex = pathX[length - 1];
+        int ey = pathY[length - 1];
+        if (ex != tx || ey != ty) {
+            TWPath rest = completion.findPath(ex, ey, tx, ty);
+            if (rest == null) {
+                return null;
+            }
+            path.append(rest);
+        }
+        return path;
+    }
+
+    /**
+     * @return x-coordinates of the last search's path, see {@link #getLength()}
+     */
+    public int[] getPathX() {
+        return pathX;
+    }
+
+    /**
+     * @return y-coordinates of the last search's path, see {@link #getLength()}
+     */
+    public int[] getPathY() {
+        return pathY;
+    }
+
+    /**
+     * @return number of positions in the last search's path, -1 if it failed
+     */
+    public int getLength() {
+        return length;
+    }
+
+    private static TWDirection getDirection(int x, int y, int nx, int ny) {
+        if (nx > x) {
+            return TWDirection.E;
+        } else if (nx < x) {
+            return TWDirection.W;
+        } else if (ny > y) {
+            return TWDirection.S;
+        } else if (ny < y) {
+            return TWDirection.N;
+        } else {
+            return TWDirection.Z;
+        }
+    }
+
+    private static int heuristic(int x, int y, int tx, int ty) {
+        return Math.abs(tx - x) + Math.abs(ty - y);
+    }
+
+    private static long pack(int f, int s) {
+        return ((long) f << 32) | s;
+    }
+
+    /**
+     * The nodes, hash table and open list of a search, one per thread. Only
+     * the states touched by the current search hold nodes, and clearing
+     * costs time proportional to that number.
+     */
+    private static final class Workspace {
+
+        /** The workspace of each thread */
+        private static final ThreadLocal<Workspace> POOL = new ThreadLocal<Workspace>();
+
+        /** State (dt * cells + cell) of each node */
+        private int[] state = new int[256];
+        private int[] g = new int[256];
+        private int[] parent = new int[256];
+        private boolean[] closed = new boolean[256];
+        /** Number of nodes in use by the current search */
+        private int nodeCount;
+
+        /** Open addressing table from state + 1 (0 for empty) to node */
+        private int[] tableKey = new int[512];
+        private int[] tableNode = new int[512];
+
+        /**
+         * Open list of (f << 32 | state), stale duplicates are skipped when
+         * popped. Ties are broken by state rather than node so the result
+         * does not depend on the order nodes were created in.
+         */
+        private final LongMinHeap open = new LongMinHeap();
+
+        /**
+         * Borrow the calling thread's workspace, creating it on first use
+         */
+        private static Workspace get() {
+            Workspace workspace = POOL.get();
+            if (workspace == null) {
+                workspace = new Workspace();
+                POOL.set(workspace);
+            }
+            return workspace;
+        }
+
+        /**
+         * Forget every node of the previous search
+         */
+        private void clear() {
+            // the probe runs past slots already emptied, so every key is
+            // still found even though its chain may have been broken
+            int mask = tableKey.length - 1;
+            for (int n = 0; n < nodeCount; n++) {
+                int i = slot(state[n], mask);
+                while (tableKey[i] != state[n] + 1) {
+                    i = (i + 1) & mask;
+                }
+                tableKey[i] = 0;
+            }
+            nodeCount = 0;
+            open.clear();
+        }
+
+        /**
+         * The node of a state, created (with infinite cost) the first time
+         * the current search touches it
+         */
+        private int node(int s) {
+            int mask = tableKey.length - 1;
+            int i = slot(s, mask);
+            while (tableKey[i] != 0) {
+                if (tableKey[i] == s + 1) {
+                    return tableNode[i];
+                }
+                i = (i + 1) & mask;
+            }
+            int n = nodeCount++;
+            if (n == state.length) {
+                state = Arrays.copyOf(state, n * 2);
+                g = Arrays.copyOf(g, n * 2);
+                parent = Arrays.copyOf(parent, n * 2);
+                closed = Arrays.copyOf(closed, n * 2);
+            }
+            state[n] = s;
+            g[n] = Integer.MAX_VALUE;
+            closed[n] = false;
+            tableKey[i] = s + 1;
+            tableNode[i] = n;
+            if (nodeCount * 2 > tableKey.length) {
+                rehash();
+            }
+            return n;
+        }
+
+        private void rehash() {
+            tableKey = new int[tableKey.length * 2];
+            tableNode = new int[tableKey.length];
+            int mask = tableKey.length - 1;
+            for (int n = 0; n < nodeCount; n++) {
+                int i = slot(state[n], mask);
+                while (tableKey[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                tableKey[i] = state[n] + 1;
+                tableNode[i] = n;
+            }
+        }
+
+        private static int slot(int s, int mask) {
+            return (s * 0x9E3779B1 >>> 7) & mask;
+        }
+    }
+}
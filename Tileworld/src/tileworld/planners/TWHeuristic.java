@@ -0,0 +1,22 @@
+package tileworld.planners;
+
+/**
+ * Interface for the heuristics used by AstarPathGenerator, see
+ * ManhattanHeuristic and LandmarkHeuristic.
+ *
+ * A heuristic must never overestimate the true path cost, otherwise A* is no
+ * longer guaranteed to find shortest paths.
+ */
+public interface TWHeuristic {
+
+    /**
+     * Returns an estimate of the cost of the path from x,y to tx,ty.
+     *
+     * @param x  x-coordinate of the location being evaluated
+     * @param y  y-coordinate of the location being evaluated
+     * @param tx x-coordinate of the target location
+     * @param ty y-coordinate of the target location
+     * @return The estimated cost of moving from (x,y) to (tx,ty)
+     */
+    public double getCost(int x, int y, int tx, int ty);
+}
@@ -5,7 +5,9 @@
 package tileworld.planners;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.NoSuchElementException;
 import tileworld.environment.TWDirection;
 
 /**
@@ -21,15 +23,31 @@ import tileworld.environment.TWDirection;
  *
  * A class to store a path which can be used to move the agent
  *
- * The path is a linked list of PathSteps, Each path step is and x,y coordinate and a direction.
+ * The path is a sequence of steps, each step is an x,y coordinate and a direction.
+ * Steps are packed into a single int each (14 bits per coordinate, 3 bits for the
+ * direction, which besides the four moves may be Z for waiting) and kept in a
+ * primitive array that grows at either end. Executing the path moves a cursor
+ * along the array, and reset lets a path generator refill the same instance, so
+ * building and following a path allocates nothing per step. The TWPathStep based
+ * methods are kept for compatibility and allocate a step object per call.
  *
  */
 public class TWPath {
 
+    private static final int DIRECTION_BITS = 3;
+    private static final int COORDINATE_BITS = 14;
+    private static final int COORDINATE_MASK = (1 << COORDINATE_BITS) - 1;
+    private static final TWDirection[] DIRECTIONS = TWDirection.values();
+
     /**
-     * The steps of the path.
+     * The packed steps of the path, the live ones are steps[head..tail).
      */
-    private LinkedList<TWPathStep> path;
+    private int[] steps;
+
+    /**
+     * Index of the next step to execute and one past the last step.
+     */
+    private int head, tail;
 
     /**
      * X and Y coordinate of the last path step added.
@@ -37,15 +55,83 @@ public class TWPath {
     private int lastAddedX, lastAddedY;
 
     public TWPath(int targetx, int targety) {
+        this(targetx, targety, 16);
+    }
+
+    /**
+     * @param targetx  x-coordinate of the target
+     * @param targety  y-coordinate of the target
+     * @param capacity initial number of steps that fit without growing
+     */
+    public TWPath(int targetx, int targety, int capacity) {
+        this.steps = new int[Math.max(2, capacity)];
+        reset(targetx, targety);
+    }
+
+    /**
+     * Empties the path so it can be refilled for a new target without allocating.
+     * @param targetx
+     * @param targety
+     */
+    public void reset(int targetx, int targety) {
         lastAddedX = targetx;
         lastAddedY = targety;
-        this.path = new LinkedList<TWPathStep>();
+        head = steps.length / 2;
+        tail = head;
     }
 
     /**
+     * Makes this path a copy of the remaining steps of another path, reusing this
+     * path's array where it is big enough.
+     * @param other
+     */
+    public void copyFrom(TWPath other) {
+        int n = other.size();
+        if (steps.length < n) {
+            steps = new int[n];
+        }
+        System.arraycopy(other.steps, other.head, steps, 0, n);
+        head = 0;
+        tail = n;
+        lastAddedX = other.lastAddedX;
+        lastAddedY = other.lastAddedY;
+    }
+
+    /**
+     * @return a new path holding the remaining steps of this one
+     */
+    public TWPath copy() {
+        TWPath path = new TWPath(lastAddedX, lastAddedY, size());
+        path.copyFrom(this);
+        return path;
+    }
+
+    /**
+     * Appends the remaining steps of another path to this one.
+     * @param other
+     */
+    public void append(TWPath other) {
+        int n = other.size();
+        while (steps.length - tail < n) {
+            growBack();
+        }
+        System.arraycopy(other.steps, other.head, steps, tail, n);
+        tail += n;
+        if (n > 0) {
+            updateLastAdded(other.lastAddedX, other.lastAddedY);
+        }
+    }
+
+    /**
+     * Builds a linked list of the remaining steps. Allocates a step object per
+     * step, use the cursor methods when following the path.
      * @return the path
      */
     public LinkedList<TWPathStep> getpath() {
+        LinkedList<TWPathStep> path = new LinkedList<TWPathStep>();
+        for (int i = head; i < tail; i++) {
+            path.add(unpack(steps[i]));
+        }
         return path;
     }
 
@@ -53,7 +139,11 @@ public class TWPath {
      * @param path the path to set
      */
     public void setPath(LinkedList<TWPathStep> path) {
-        this.path = path;
+        head = steps.length / 2;
+        tail = head;
+        for (TWPathStep step : path) {
+            appendStep(step);
+        }
     }
 
     /**
@@ -63,18 +153,41 @@ public class TWPath {
      */
     public void modifyPath(ArrayList<TWPathStep> pathSubSet, int startIndex) {
         for (int i = 0; i < pathSubSet.size(); i++) {
-            path.set(i+startIndex, pathSubSet.get(i));
+            TWPathStep step = pathSubSet.get(i);
+            steps[head + startIndex + i] = pack(step.getX(), step.getY(), step.getDirection());
         }
     }
 
     /**
-     * Gets step of plan at specified index, not used and is expensive in linked list
-     * Her for completeness.
+     * Gets step of plan at specified index, relative to the next step to execute.
      * @param index
      * @return
      */
     public TWPathStep getStep(int index) {
-        return path.get(index);
+        return unpack(steps[head + index]);
+    }
+
+    /**
+     * @param index index relative to the next step to execute
+     * @return x-coordinate of that step
+     */
+    public int getStepX(int index) {
+        return steps[head + index] >>> (COORDINATE_BITS + DIRECTION_BITS);
+    }
+
+    /**
+     * @param index index relative to the next step to execute
+     * @return y-coordinate of that step
+     */
+    public int getStepY(int index) {
+        return (steps[head + index] >>> DIRECTION_BITS) & COORDINATE_MASK;
+    }
+
+    /**
+     * @return number of steps left to execute
+     */
+    public int size() {
+        return tail - head;
     }
 
     private void updateLastAdded(int x, int y) {
@@ -83,31 +196,44 @@ public class TWPath {
     }
 
     public void appendStep(TWPathStep d) {
-        path.addLast(d);
-        updateLastAdded(d.getX(), d.getY());
+        appendStep(d.getX(), d.getY(), d.getDirection());
     }
 
     //do we need this??
     public void prependStep(TWPathStep d) {
-        path.addFirst(d);
-        updateLastAdded(d.getX(), d.getY());
-
+        prependStep(d.getX(), d.getY(), d.getDirection());
     }
 
     public void appendStep(int x, int y) {
-        this.appendStep(new TWPathStep(x, y, this.getDirection(this.lastAddedX, this.lastAddedY, x, y)));
+        this.appendStep(x, y, this.getDirection(this.lastAddedX, this.lastAddedY, x, y));
     }
 
     //do we need this??
     //We are adding in reverse order so go from current x,y to last added to get direction
     public void prependStep(int x, int y) {
+        this.prependStep(x, y, this.getReverseDirection(this.lastAddedX, this.lastAddedY, x, y));
+    }
+
+    public void appendStep(int x, int y, TWDirection direction) {
+        if (tail == steps.length) {
+            growBack();
+        }
+        steps[tail++] = pack(x, y, direction);
+        updateLastAdded(x, y);
+    }
 
-        this.prependStep(new TWPathStep(x, y, this.getReverseDirection(this.lastAddedX, this.lastAddedY, x, y)));
+    public void prependStep(int x, int y, TWDirection direction) {
+        if (head == 0) {
+            growFront();
+        }
+        steps[--head] = pack(x, y, direction);
+        updateLastAdded(x, y);
     }
 
     public boolean contains(int x, int y) {
-        for (TWPathStep step : path) {
-            if (step.getX() == x && step.getY() == y) {
+        int packed = pack(x, y, DIRECTIONS[0]);
+        for (int i = head; i < tail; i++) {
+            if ((steps[i] >>> DIRECTION_BITS) == (packed >>> DIRECTION_BITS)) {
                 return true;
             }
         }
@@ -158,13 +284,58 @@ public class TWPath {
 
     /**
      * Used for executing the path, removes and returns the first step in the plan.
+     * Allocates the returned step, see popNextDirection.
      * @return
      */
     public TWPathStep popNext() {
-        return this.path.pop();
+        if (head == tail) {
+            throw new NoSuchElementException();
+        }
+        return unpack(steps[head++]);
+    }
+
+    /**
+     * Used for executing the path, removes the first step in the plan and returns
+     * its direction without allocating.
+     * @return
+     */
+    public TWDirection popNextDirection() {
+        if (head == tail) {
+            throw new NoSuchElementException();
+        }
+        return DIRECTIONS[steps[head++] & ((1 << DIRECTION_BITS) - 1)];
     }
 
     public boolean hasNext() {
-        return this.path.peekFirst() != null;
+        return head < tail;
+    }
+
+    private static int pack(int x, int y, TWDirection direction) {
+        return (x << (COORDINATE_BITS + DIRECTION_BITS)) | (y << DIRECTION_BITS) | direction.ordinal();
+    }
+
+    private static TWPathStep unpack(int packed) {
+        return new TWPathStep(packed >>> (COORDINATE_BITS + DIRECTION_BITS),
+                (packed >>> DIRECTION_BITS) & COORDINATE_MASK,
+                DIRECTIONS[packed & ((1 << DIRECTION_BITS) - 1)]);
+    }
+
+    /**
+     * Doubles the array, all new room in front of the existing steps
+     */
+    private void growFront() {
+        int[] grown = new int[steps.length * 2];
+        int offset = grown.length - steps.length;
+        System.arraycopy(steps, head, grown, head + offset, tail - head);
+        head += offset;
+        tail += offset;
+        steps = grown;
+    }
+
+    /**
+     * Doubles the array, all new room behind the existing steps
+     */
+    private void growBack() {
+        steps = Arrays.copyOf(steps, steps.length * 2);
     }
 }
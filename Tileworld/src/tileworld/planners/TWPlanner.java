@@ -5,6 +5,7 @@
 
 package tileworld.planners;
 
+import java.util.ArrayList;
 import sim.util.Int2D;
 import tileworld.environment.TWDirection;
 
@@ -17,6 +18,7 @@ public interface TWPlanner {
     TWPath generatePlan();
     boolean hasPlan();
     void voidPlan();
+    ArrayList<Int2D> getGoals();
     Int2D getCurrentGoal();
     TWDirection execute();
 
@@ -0,0 +1,92 @@
+package tileworld.planners;
+
+import tileworld.agent.TWAgent;
+import tileworld.agent.TWAgentWorkingMemory;
+import tileworld.environment.TWEntity;
+import tileworld.environment.TWEnvironment;
+
+/**
+ * TimeExpandedPathGenerator
+ *
+ * Description: Obstacles only live for Parameters.lifeTime steps, but an
+ * ordinary search treats every remembered obstacle as permanent and may take
+ * a long detour around one that is about to disappear. This generator
+ * searches over (x, y, t) for the first horizon steps, with waiting in place
+ * as an extra move, and treats a remembered obstacle as blocked only until
+ * its estimated remaining lifetime has passed. The search then chooses
+ * between waiting for an obstacle to expire and going around it, whichever
+ * reaches the target sooner.
+ *
+ * The estimate is based on when the obstacle was last seen, and an obstacle
+ * cannot have been created after that, so it is gone by the estimated time
+ * at the latest. Beyond the horizon the rest of the path is completed by an
+ * ordinary path generator, which keeps the state space bounded.
+ *
+ * The space-time search itself is SpaceTimeSearch, whose state lives in a
+ * per-thread workspace; this class only decides which moves are blocked.
+ *
+ * Plans depend on the current time, so DefaultTWPlanner must not cache them.
+ */
+public class TimeExpandedPathGenerator implements TWPathGenerator {
+
+    private final TWAgent agent;
+    /** Completes the path from the end of the horizon to the target */
+    private final TWPathGenerator completion;
+    /** Searches the first horizon steps in space-time */
+    private final SpaceTimeSearch search;
+
+    /** Inputs of the current search, read by the move filter */
+    private TWAgentWorkingMemory memory;
+    private long[] blocked;
+    private int wordsPerRow;
+
+    /**
+     * A move into a remembered obstacle is blocked until the obstacle has
+     * certainly expired, waiting is always allowed
+     */
+    private final SpaceTimeSearch.MoveFilter filter = new SpaceTimeSearch.MoveFilter() {
+        @Override
+        public boolean isBlocked(int x, int y, int nx, int ny, int dt) {
+            // this move is made at time now + dt, the environment removes
+            // the obstacle at the start of the step it expires in
+            return (nx != x || ny != y) && dt < getExpiry(nx, ny);
+        }
+    };
+
+    /**
+     * @param map        the map being searched
+     * @param agent      the agent the paths are for
+     * @param horizon    number of time steps planned with obstacle lifetimes
+     * @param completion generator for the remainder of the path
+     */
+    public TimeExpandedPathGenerator(TWEnvironment map, TWAgent agent, int horizon, TWPathGenerator completion) {
+        this.agent = agent;
+        this.completion = completion;
+        this.search = new SpaceTimeSearch(map.getxDimension(), map.getyDimension(), horizon);
+    }
+
+    @Override
+    public TWPath findPath(int sx, int sy, int tx, int ty) {
+        memory = agent.getMemory();
+        blocked = memory.getBlockedBits();
+        wordsPerRow = memory.getBlockedWordsPerRow();
+
+        if (search.search(sx, sy, tx, ty, filter) < 0) {
+            return null;
+        }
+        return search.toPath(tx, ty, completion);
+    }
+
+    /**
+     * Number of steps from now until (x, y) is certainly clear, 0 if it is
+     * not blocked in memory at all.
+     */
+    private int getExpiry(int x, int y) {
+        if (!TWAgentWorkingMemory.isBlocked(blocked, wordsPerRow, x, y)) {
+            return 0;
+        }
+        TWEntity obstacle = memory.getObject(x, y);
+        return obstacle == null ? Integer.MAX_VALUE
+                : (int) Math.ceil(memory.getEstimatedRemainingLifetime(obstacle, 1.0));
+    }
+}
@@ -0,0 +1,212 @@
+package tileworld.planners;
+
+import java.util.List;
+
+import tileworld.agent.TWAgentWorkingMemory;
+import tileworld.environment.TWEntity;
+import tileworld.environment.TWHole;
+import tileworld.environment.TWTile;
+
+/**
+ * TourPlanner
+ *
+ * Description: Orders a handful of pickups and fills into a tour instead of
+ * always heading for the single closest tile or hole. An agent can carry up
+ * to three tiles, and every remembered object has an estimated remaining
+ * lifetime, so the best next target is often not the nearest one.
+ *
+ * The planner runs a depth-first branch and bound over sequences of up to
+ * maxStops stops drawn from the first maxCandidates tiles and holes. A tour
+ * is feasible if every stop is reached before the object's estimated
+ * remaining lifetime runs out, the carrying capacity is respected and the
+ * total number of steps stays within the fuel budget. Tours are scored by
+ * reward per step, where a filled hole is worth 1 and a tile still carried at
+ * the end of the tour is worth CARRIED_TILE_VALUE (it still needs a hole).
+ * Any prefix of a tour is itself a tour, so the search may stop anywhere.
+ *
+ * The search is strictly bounded in time: when the budget runs out the best
+ * tour found so far is used. Distances between stops are Manhattan
+ * distances, matching the rest of the goal selection in TWAgentHybrid.
+ */
+public class TourPlanner {
+
+    /** Value of a tile picked up but not yet put in a hole */
+    private static final double CARRIED_TILE_VALUE = 0.5;
+    /** Carrying capacity of an agent, see TWAgent.pickUpTile */
+    private static final int CAPACITY = 3;
+    /** How many nodes to expand between clock reads */
+    private static final int CLOCK_INTERVAL = 64;
+
+    private final int maxCandidates;
+    private final int maxStops;
+    private final long budgetNanos;
+
+    // per call search state
+    private int count;
+    private final int[] stopX;
+    private final int[] stopY;
+    private final boolean[] isTile;
+    private final double[] lifetime;
+    private final boolean[] used;
+    private final TWEntity[] entities;
+    private int fuelBudget;
+    private long deadline;
+    private boolean timedOut;
+    private int expanded;
+
+    private double bestScore;
+    private int bestFirst;
+
+    /**
+     * @param maxCandidates maximum number of tiles and of holes considered
+     * @param maxStops      maximum length of a tour
+     * @param budgetNanos   time budget of one call to plan
+     */
+    public TourPlanner(int maxCandidates, int maxStops, long budgetNanos) {
+        this.maxCandidates = maxCandidates;
+        this.maxStops = maxStops;
+        this.budgetNanos = budgetNanos;
+        this.stopX = new int[maxCandidates * 2];
+        this.stopY = new int[maxCandidates * 2];
+        this.isTile = new boolean[maxCandidates * 2];
+        this.lifetime = new double[maxCandidates * 2];
+        this.used = new boolean[maxCandidates * 2];
+        this.entities = new TWEntity[maxCandidates * 2];
+    }
+
+    /**
+     * Find the first stop of the best tour.
+     *
+     * @param x          agent x-coordinate
+     * @param y          agent y-coordinate
+     * @param carried    number of tiles the agent carries
+     * @param fuelBudget maximum number of steps the tour may take
+     * @param tiles      candidate tiles, best first
+     * @param holes      candidate holes, best first
+     * @param memory     the agent's memory, for remaining lifetimes
+     * @param threshold  lifetime threshold passed to getEstimatedRemainingLifetime
+     * @return the tile or hole to head for next, or null if no tour is feasible
+     */
+    public TWEntity plan(int x, int y, int carried, int fuelBudget, List<TWEntity> tiles, List<TWEntity> holes,
+            TWAgentWorkingMemory memory, double threshold) {
+        count = 0;
+        add(tiles, TWTile.class, memory, threshold);
+        add(holes, TWHole.class, memory, threshold);
+
+        this.fuelBudget = fuelBudget;
+        this.deadline = System.nanoTime() + budgetNanos;
+        this.timedOut = false;
+        this.expanded = 0;
+        this.bestScore = 0;
+        this.bestFirst = -1;
+
+        search(x, y, carried, 0, 0, 0, -1);
+        return bestFirst < 0 ? null : entities[bestFirst];
+    }
+
+    /**
+     * @return number of tour prefixes expanded by the last call to plan
+     */
+    public int getExpanded() {
+        return expanded;
+    }
+
+    /**
+     * @return true if the last call to plan ran out of time
+     */
+    public boolean hasTimedOut() {
+        return timedOut;
+    }
+
+    private void add(List<TWEntity> candidates, Class<?> type, TWAgentWorkingMemory memory, double threshold) {
+        int added = 0;
+        for (int i = 0; i < candidates.size() && added < maxCandidates; i++) {
+            TWEntity e = candidates.get(i);
+            if (!type.isInstance(e)) {
+                continue;
+            }
+            stopX[count] = e.getX();
+            stopY[count] = e.getY();
+            isTile[count] = e instanceof TWTile;
+            lifetime[count] = memory.getEstimatedRemainingLifetime(e, threshold);
+            used[count] = false;
+            entities[count] = e;
+            count++;
+            added++;
+        }
+    }
+
+    /**
+     * Extend the current tour prefix by one more stop.
+     *
+     * @param x       current position
+     * @param y       current position
+     * @param carried tiles carried at this point of the tour
+     * @param steps   steps taken so far
+     * @param fills   holes filled so far
+     * @param picked  tiles picked up so far
+     * @param first   first stop of this tour, -1 for the empty tour
+     */
+    private void search(int x, int y, int carried, int steps, int fills, int picked, int first) {
+        expanded++;
+        if ((expanded % CLOCK_INTERVAL) == 0 && System.nanoTime() > deadline) {
+            timedOut = true;
+        }
+        if (timedOut) {
+            return;
+        }
+
+        if (steps > 0) {
+            double score = (fills + CARRIED_TILE_VALUE * Math.max(0, picked - fills)) / steps;
+            if (score > bestScore) {
+                bestScore = score;
+                bestFirst = first;
+            }
+        }
+
+        int depth = fills + picked;
+        if (depth >= maxStops) {
+            return;
+        }
+
+        // optimistic bound: every remaining stop gives a full reward and the
+        // nearest one is the only extra distance walked
+        int remaining = maxStops - depth;
+        int nearest = Integer.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            if (!used[i]) {
+                nearest = Math.min(nearest, Math.abs(stopX[i] - x) + Math.abs(stopY[i] - y));
+            }
+        }
+        if (nearest == Integer.MAX_VALUE) {
+            return;
+        }
+        double bound = (fills + CARRIED_TILE_VALUE * Math.max(0, picked - fills) + remaining)
+                / Math.max(1, steps + nearest);
+        if (bound <= bestScore) {
+            return;
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (used[i]) {
+                continue;
+            }
+            if (isTile[i] ? carried >= CAPACITY : carried <= 0) {
+                continue;
+            }
+            int arrival = steps + Math.abs(stopX[i] - x) + Math.abs(stopY[i] - y);
+            if (arrival > fuelBudget || arrival >= lifetime[i]) {
+                continue;
+            }
+            used[i] = true;
+            if (isTile[i]) {
+                search(stopX[i], stopY[i], carried + 1, arrival, fills, picked + 1,
+                        first < 0 ? i : first);
+            } else {
+                search(stopX[i], stopY[i], carried - 1, arrival, fills + 1, picked,
+                        first < 0 ? i : first);
+            }
+            used[i] = false;
+        }
+    }
+}